@@ -0,0 +1,195 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * Predicts the outcome of a fight between the units we can see and the enemy
+ * Each side is a list of fighters with their health, damage per round, the round they get into range and the round
+ * they run out of supply (after which they fire at half rate). Both sides focus fire on their weakest target, which is
+ * what attackWeakest does, and we step the fight forward a few rounds at a time until one side is wiped out
+ * Predictions are memoised on a signature of both sides so a stand off that hasn't changed isn't simulated again
+ */
+public class Battle {
+	private static final int MAX_FIGHTERS = 48; // Per side - anything more than this is ignored
+	private static final int STEP_ROUNDS = 4;
+	private static final int SIM_ROUNDS = 20;
+	public static final int NEVER = 10000; // A round past the end of the simulation
+	private static final double MISSILE_SPLASH = 2.0; // A missile usually catches a neighbour of its target
+	private static final int MEMO_SIZE = 8;
+
+	private double[][] health = new double[2][MAX_FIGHTERS];
+	private double[][] dps = new double[2][MAX_FIGHTERS];
+	private int[][] from = new int[2][MAX_FIGHTERS];
+	private int[][] starve = new int[2][MAX_FIGHTERS];
+	private int[][] order = new int[2][MAX_FIGHTERS]; // Indices sorted weakest first
+	private int[] count = new int[2];
+	private double[] dpsTable; // Per robot type
+	private int signature;
+
+	private int[] memoKey = new int[MEMO_SIZE];
+	private boolean[] memoResult = new boolean[MEMO_SIZE];
+	private int memoNext;
+
+	public static final int ALLY = 0;
+	public static final int ENEMY = 1;
+
+	public Battle() {
+		RobotType[] types = RobotType.values();
+		dpsTable = new double[types.length];
+		for (RobotType t: types) {
+			if (t == RobotType.LAUNCHER)
+				dpsTable[t.ordinal()] = RobotType.MISSILE.attackPower * MISSILE_SPLASH / GameConstants.MISSILE_SPAWN_FREQUENCY;
+			else if (t == RobotType.MISSILE)
+				dpsTable[t.ordinal()] = t.attackPower / STEP_ROUNDS; // It only hits once
+			else if (t.attackDelay > 0)
+				dpsTable[t.ordinal()] = t.attackPower / t.attackDelay;
+		}
+	}
+
+	// Damage per round for a robot of this type with full supply
+	public double dps(RobotType t) {
+		return dpsTable[t.ordinal()];
+	}
+
+	public void reset(int seed) {
+		count[ALLY] = 0;
+		count[ENEMY] = 0;
+		signature = seed;
+	}
+
+	// Returns the slot of the fighter so its health can be corrected later
+	public int add(int side, double h, double d, int inRange, int outOfSupply) {
+		int i = count[side];
+		if (i == MAX_FIGHTERS)
+			return -1;
+		health[side][i] = h;
+		dps[side][i] = d;
+		from[side][i] = inRange;
+		starve[side][i] = outOfSupply;
+		count[side]++;
+		signature = signature * 31 + (int)h * 7 + (int)(d * 100) * 131 + inRange * 1021 + outOfSupply + side;
+		return i;
+	}
+
+	public void setHealth(int side, int slot, double h) {
+		health[side][slot] = h;
+		signature = signature * 31 + (int)h + slot;
+	}
+
+	public int fighters(int side) {
+		return count[side];
+	}
+
+	/*
+	 * True if we win the fight, or if we aren't threatened, win it with at least half our health left
+	 */
+	public boolean weWin(boolean threatened) {
+		int key = threatened ? signature : ~signature;
+		for (int i=0; i<MEMO_SIZE; i++) {
+			if (memoKey[i] == key && key != 0)
+				return memoResult[i];
+		}
+		boolean result = simulate(threatened);
+		memoKey[memoNext] = key;
+		memoResult[memoNext] = result;
+		memoNext = (memoNext + 1) % MEMO_SIZE;
+		return result;
+	}
+
+	private boolean simulate(boolean threatened) {
+		if (count[ENEMY] == 0)
+			return true;
+		if (count[ALLY] == 0)
+			return false;
+
+		double allyStart = sort(ALLY);
+		double enemyStart = sort(ENEMY);
+		int[] dead = new int[2]; // Fighters are killed weakest first so the dead are a prefix of the order
+
+		for (int t=0; t<SIM_ROUNDS; t+=STEP_ROUNDS) {
+			double allyDamage = damage(ALLY, dead[ALLY], t);
+			double enemyDamage = damage(ENEMY, dead[ENEMY], t);
+			dead[ENEMY] = inflict(ENEMY, dead[ENEMY], allyDamage);
+			dead[ALLY] = inflict(ALLY, dead[ALLY], enemyDamage);
+			if (dead[ALLY] == count[ALLY])
+				return false;
+			if (dead[ENEMY] == count[ENEMY])
+				break;
+		}
+
+		double allyLeft = remaining(ALLY, dead[ALLY]);
+		double enemyLeft = remaining(ENEMY, dead[ENEMY]);
+		if (allyLeft * enemyStart <= enemyLeft * allyStart)
+			return false;
+		return threatened || allyLeft * 2 >= allyStart;
+	}
+
+	// Insertion sort of the side weakest first, returning its total health
+	private double sort(int side) {
+		int[] o = order[side];
+		double[] h = health[side];
+		int n = count[side];
+		double total = 0;
+		for (int i=0; i<n; i++) {
+			double v = h[i];
+			total += v;
+			int j = i;
+			while (j > 0 && h[o[j-1]] > v) {
+				o[j] = o[j-1];
+				j--;
+			}
+			o[j] = i;
+		}
+		return total;
+	}
+
+	// The damage a side does in the step starting at round t
+	private double damage(int side, int first, int t) {
+		int[] o = order[side];
+		double[] d = dps[side];
+		int[] f = from[side];
+		int[] s = starve[side];
+		int n = count[side];
+		int end = t + STEP_ROUNDS;
+		double total = 0;
+		for (int p=first; p<n; p++) {
+			int i = o[p];
+			int start = Math.max(t, f[i]);
+			if (start >= end)
+				continue;
+			if (s[i] >= end)
+				total += d[i] * (end - start);
+			else if (s[i] <= start)
+				total += d[i] * (end - start) / 2;
+			else
+				total += d[i] * ((s[i] - start) + (end - s[i]) / 2.0);
+		}
+		return total;
+	}
+
+	// Apply damage to a side weakest first, returning the new number dead
+	private int inflict(int side, int first, double damage) {
+		int[] o = order[side];
+		double[] h = health[side];
+		int n = count[side];
+		while (damage > 0 && first < n) {
+			int i = o[first];
+			if (h[i] > damage) {
+				h[i] -= damage;
+				break;
+			}
+			damage -= h[i];
+			first++;
+		}
+		return first;
+	}
+
+	private double remaining(int side, int first) {
+		int[] o = order[side];
+		double[] h = health[side];
+		double total = 0;
+		for (int p=first; p<count[side]; p++)
+			total += h[o[p]];
+		return total;
+	}
+}
@@ -5,7 +5,10 @@ import battlecode.common.*;
 /*
  * This class performs background breadth first searches to a given destination and provides a lookup function
  * for a bot who wants to know the direction to get to the destination.
- * The results are stored in the broadcast space from index 0 (to 45000) and the metadata 500 ints from the end
+ * The results are stored in the broadcast space from index 0 (to 45000) packed 5 tiles to a channel
+ * and the metadata is stored from 45000
+ * The search itself (costs, buckets and repair lists) lives in the broadcast space from 52000 so the HQ and
+ * computers can all take slices of it
  */
 
 public class Bfs {
@@ -14,25 +17,34 @@ public class Bfs {
 	private static int PAGE_SIZE;
 	private static int MAP_HEIGHT;
 	private static int MAP_WIDTH;
-	private static final int MAX_PAGES = 5;
+	private static final int MAX_PAGES = 15;
+	private static final int TILES_PER_CHANNEL = 5;
 
 	private static RobotController rc;
 	private static MapInfo map;
+	private static Clusters clusters; //Coarse routes for large maps while the pages are filled in
 
 	public Bfs(RobotController theRC) {
 		rc = theRC;
 		map = null;
 		MAP_HEIGHT = GameConstants.MAP_MAX_HEIGHT;
 		MAP_WIDTH = GameConstants.MAP_MAX_WIDTH;
-		PAGE_SIZE = MAP_WIDTH * MAP_HEIGHT;
+		PAGE_SIZE = (MAP_WIDTH * MAP_HEIGHT + TILES_PER_CHANNEL - 1) / TILES_PER_CHANNEL;
 		NUM_PAGES = Math.min(45000 / PAGE_SIZE, MAX_PAGES);
+		clusters = new Clusters(rc);
 	}
 
-	private static final int pageMetadataBaseChannel = 45000; //We store the pathfinding status here (uses no more than 5 ints)
+	private static final int pageMetadataBaseChannel = 45000; //We store the pathfinding status here (uses no more than 15 ints)
+	private static final int pageDestBaseChannel = pageMetadataBaseChannel + MAX_PAGES; //We store the destination and epoch of each page here
 
 	public static final int PRIORITY_HIGH = 2;
 	public static final int PRIORITY_LOW = 1;
 
+	// Movement classes - each page is for one of these
+	// Drones fly over VOID so only the edges of the map (and buildings) are in their way
+	public static final int GROUND = 0;
+	public static final int AIR = 1;
+
 	// Page allocation:
 	// From time to time various different robots will want to use the Bfs class to
 	// calculate pathing information for various different destinations. In each case, we need
@@ -55,9 +67,10 @@ public class Bfs {
 	// rrrr = round last updated (12bits)
 	// xx = dest x coordinate (8 bits)
 	// yy = dest y coordinate (8 bits)
-	private void writePageMetadata(int page, int roundLastUpdated, MapLocation dest, int priority, boolean finished) throws GameActionException {
+	// dest is the cropped destination packed as xxxxxxxyyyyyyy
+	private void writePageMetadata(int page, int roundLastUpdated, int dest, int priority, boolean finished, boolean unknowns) throws GameActionException {
 		int channel = pageMetadataBaseChannel + page;
-		int data = (containsUnknowns ? 1<<31 : 0) | (finished ? 1<<30 : 0) | ((priority & 0x3) << 28) | ((roundLastUpdated & 0xfff) << 16) | (cropX(dest.x) << 8) | cropY(dest.y);
+		int data = (unknowns ? 1<<31 : 0) | (finished ? 1<<30 : 0) | ((priority & 0x3) << 28) | ((roundLastUpdated & 0xfff) << 16) | ((dest >> 7) << 8) | (dest & 0x7f);
 		rc.broadcast(channel, data);
 	}
 
@@ -87,28 +100,51 @@ public class Bfs {
 		return data;
 	}
 
-	private int findFreePage(MapLocation dest, int priority, boolean restart) throws GameActionException {
-		// see if we can reuse a page we used before
-		if (dest.equals(previousDest) && previousPage != -1) {
-			int previousPageMetadata = readPageMetadata(previousPage);
-			if (getMetadataRoundLastUpdated(previousPageMetadata) == (previousRoundWorked & 0xfff)) {
-				MapLocation where = getMetadataDestination(previousPageMetadata);
-				if (where.x == cropX(dest.x) && where.y == cropY(dest.y) ) {
-					if (restart) {
-						initQueue(dest);
-					} else if (getMetadataIsFinished(previousPageMetadata)) {
-						if (getMetadataIsComplete(previousPageMetadata)) {
-							return -1; //We finished and there where no unknowns
-						} else {
-							initQueue(dest); //We finished but there were unknowns
-						}
-					}
+	// The destination of a page is stored once so readers can check it without decoding every tile
+	// destination format: stored in binary
+	// eeeeeeemxxxxxxxyyyyyyy
+	// e = epoch of the page (7 bits) - incremented each time the page is given a new destination
+	// m = movement class (1 bit)
+	// x = dest x coordinate (7 bits)
+	// y = dest y coordinate (7 bits)
+	// The lower 15 bits (mxxxxxxxyyyyyyy) are the key we use to find a page
+	private void writePageDest(int page, int key, int epoch) throws GameActionException {
+		rc.broadcast(pageDestBaseChannel + page, (epoch << 15) | key);
+	}
+
+	private int readPageDest(int page) throws GameActionException {
+		return rc.readBroadcast(pageDestBaseChannel + page);
+	}
 	
-					return previousPage;
-				}
-			}
+	private int getDestEpoch(int pageDest) {
+		return pageDest >> 15;
+	}
+	
+	private int getDestKey(int pageDest) {
+		return pageDest & 0x7fff;
+	}
+	
+	private int cropPacked(MapLocation m) {
+		return (cropX(m.x) << 7) | cropY(m.y);
+	}
+	
+	private int pageKey(MapLocation dest, int movement) {
+		return (movement << 14) | cropPacked(dest);
+	}
+
+	// Returns true if a finished page with no unknowns exists for this key
+	private boolean pageIsComplete(int key) throws GameActionException {
+		for (int page = 0; page < NUM_PAGES; page++) {
+			int metadata = readPageMetadata(page);
+			if (metadata != 0 && getMetadataIsFinished(metadata) && getMetadataIsComplete(metadata) &&
+					getDestKey(readPageDest(page)) == key)
+				return true;
 		}
-		
+		return false;
+	}
+
+	// If restart is set we want to recalculate a page even if it is already finished
+	private int findFreePage(int key, int priority, boolean restart) throws GameActionException {
 		// Check to see if anyone else is working on this destination. If so, don't bother doing anything.
 		// But as we loop over pages, look for the page that hasn't been touched in the longest time
 		int lastRound = Clock.getRoundNum() - 1;
@@ -124,10 +160,11 @@ public class Bfs {
 			} else {
 				int roundUpdated = getMetadataRoundLastUpdated(metadata);
 				boolean isFinished = getMetadataIsFinished(metadata);
-				if (roundUpdated >= lastRound || isFinished) {
-					if (cropSame(getMetadataDestination(metadata),dest)) {
+				if (getDestKey(readPageDest(page)) == key) {
+					if (restart)
+						return page; // Recalculate in place - the old results are still readable until we replace them
+					if (roundUpdated >= lastRound || isFinished)
 						return -1; // someone else is on the case!
-					}
 				}
 				if (roundUpdated < oldestPageRoundUpdated) {
 					oldestPageRoundUpdated = roundUpdated;
@@ -146,70 +183,272 @@ public class Bfs {
 		return -1;
 	}
 
-	// Set up the queues
-	//We need 2 queues as some moves are diagonal and take more than 1 turn
-	private static final int NUM_QUEUES = 2;
-	private static final int MAX_QUEUE_SIZE = 400;
-	private static final double moveDelay = 1.0;
-	private static final double diagonalDelay = 1.4;
+	// The shared search
+	// There is one search running at a time. Its state is kept in the broadcast space so whichever robot has spare
+	// bytecodes can load it, take a slice of the work and store it again.
+	// We run Dial's algorithm (a bucketed Dijkstra) with costs measured in tenths of a turn.
+	// A straight move costs 10 and a diagonal one 14. Moving off a tile in range of an enemy tower or the enemy HQ
+	// costs another 20, so a tile is never queued more than 34 buckets ahead of the one being expanded and a
+	// circular array of 35 buckets is enough.
+	//
+	// Once a pass has finished we look for changes instead of starting again. Tiles whose cost can go down (an
+	// unknown tile we can now walk on) or whose route has gone (a new building, a destroyed tower) are given a
+	// cost from their neighbours and become seeds. Seeds are kept in lists by cost (one list per 35 tenths) and
+	// fed into the buckets as the pass reaches their cost, so only the affected region is expanded and published again.
+	private static final int MOVE_COST = 10;
+	private static final int DIAGONAL_COST = 14;
+	private static final int THREAT_COST = 20; //Extra cost of leaving a tile the enemy towers or HQ can shoot at
+	private static final int NUM_BUCKETS = DIAGONAL_COST + THREAT_COST + 1;
+	private static final int BUCKET_SIZE = 96;
+	private static final int MAX_COST = 8000; //Costs are stored in 13 bits
+	private static final int UNPATHABLE = 0xffff;
+	private static final int UNKNOWN_TILE = 0xfffe; //Treated as UNPATHABLE until we can sense it
+	private static final int MAX_UNKNOWNS = 1024;
+	private static final int MAX_SEEDS = 512;
+	private static final int NUM_BINS = MAX_COST / NUM_BUCKETS + 1;
+	private static final int MAX_INVALID = 1024;
+	private static final int COST_CHANNELS = (GameConstants.MAP_MAX_WIDTH * GameConstants.MAP_MAX_HEIGHT + 1) / 2;
+	private static final int LOCK_TIMEOUT = 5;
+	private static final int LOAD_COST = 500; //Bytecodes to take the lock and read the search header
+	private static final int SAVE_COST = 800; //Bytecodes to write the header and page metadata back and release the lock
+	private static final int MAX_STEP = 3400; //Bytecodes for the most expensive step (expanding a tile next to 8 unreached ones in blocks we must claim)
+	private static final int START_COST = 5000; //Bytecodes to empty the buckets and push the sources - more than any other step
+	private static final int STALE_ROUNDS = 20;
+
+	// Search states
+	private static final int S_NONE = 0;
+	private static final int S_STARTING = 1; //A new epoch has been taken, the sources are pushed on the next step
+	private static final int S_SEARCHING = 2; //Expanding the buckets
+	private static final int S_DONE = 3; //The pass is finished, we look for changes to repair
+	private static final int S_INVALIDATING = 4; //Finding every tile whose route has gone
+	private static final int S_SEEDING = 5; //Giving those tiles a cost from their neighbours
+	private static final int S_SCANNING = 6; //Checking the tiles we couldn't sense last time
+	private static final int S_SCANNING_ALL = 7; //As above but there were too many to list so we check every tile
+
+	// Broadcast layout of the search
+	private static final int searchBaseChannel = 52000;
+	private static final int H_LOCK = searchBaseChannel; // Round+1 a robot started a slice, 0 when no one is part way through
+	private static final int H_SEARCH = searchBaseChannel + 1; // sssppggggeeeeeeemxxxxxxxyyyyyyy (state, priority, page, page epoch, page key)
+	private static final int H_ROUND = searchBaseChannel + 2; // Round the search was last worked on
+	private static final int H_COST = searchBaseChannel + 3; // The cost of the bucket we are expanding
+	private static final int H_QUEUED = searchBaseChannel + 4; // Number of entries in all the buckets (including stale ones)
+	private static final int H_UNKNOWNS = searchBaseChannel + 5; // Count of unknown tiles, next to scan and number kept
+	private static final int H_SEEDS = searchBaseChannel + 6; // Seeds waiting, seeds allocated and the last bin fed into the buckets
+	private static final int H_INVALID = searchBaseChannel + 7; // Count of invalid tiles and the next one to process
+	private static final int H_CHANGES = searchBaseChannel + 8; // Number of tile changes we have applied
+	private static final int H_FLAGS = searchBaseChannel + 9; // Sources changed, overflow, number of sources, scan position and epoch
+	private static final int H_SOURCES = searchBaseChannel + 10; // The tiles the search started from (up to 7)
+	private static final int H_THREATS = searchBaseChannel + 17; // Number of enemy threats the costs were computed with
+	private static final int H_THREAT_LIST = searchBaseChannel + 18; // rrrrrrxxxxxxxyyyyyyy for each threat (r = attack radius squared, up to 7)
+	private static final int H_BUCKETS = searchBaseChannel + 25; // head | tail << 16 (offsets into the bucket) for each bucket
+	private static final int costBaseChannel = searchBaseChannel + 64; // 2 tiles per channel, see getCost
+	// The cost table is too big to zero for each search, so each block of BLOCK_CHANNELS cost channels has the epoch of
+	// the search that last wrote to it and a block from an older search reads as all zeros. The first write to such a
+	// block zeroes it and stamps it with our epoch, so starting a search doesn't touch the table at all
+	private static final int BLOCK_CHANNELS = 8;
+	private static final int costEpochBaseChannel = 45100; // One channel per block of the cost table (900 channels)
+	private static final int EPOCH_MASK = 0x1fff; // Epochs are 13 bits and never 0 - they wrap after 8191 searches
+	private static final int bucketBaseChannel = costBaseChannel + COST_CHANNELS; // data is xxxxxxxxyyyyyyyyaaaaaaaaaaaaaaaa (x, y coord, a = 10*number of action delays (dist))
+	private static final int unknownBaseChannel = bucketBaseChannel + NUM_BUCKETS * BUCKET_SIZE; // Tiles we marked UNKNOWN_TILE - data is xxxxxxxyyyyyyy
+	private static final int seedBaseChannel = unknownBaseChannel + MAX_UNKNOWNS; // data is nnnnnnnnnnxxxxxxxyyyyyyy (n = next seed in this bin + 1)
+	private static final int binBaseChannel = seedBaseChannel + MAX_SEEDS; // Epoch << 10 | the first seed in each bin + 1 (0 = empty)
+	private static final int invalidBaseChannel = binBaseChannel + NUM_BINS; // Work list of tiles that have lost their route - data is fxxxxxxxyyyyyyy
+	private static final int RELIEVED = 1 << 14; // Flag in the work list: the tile keeps its route but is no longer threatened
 
-	private static int[] locQueues = null;
-	private static int currentQ = 0;
-	private static boolean containsUnknowns = false;
-	private static int[] qHeads = new int[NUM_QUEUES]; //The index into the locQueue for the head of this queue
-	private static int[] qTails = new int[NUM_QUEUES]; //The index into the locQueue for the tail of this queue
-	private static boolean[][] processed = null; //Set to true when the location is put into 1 of the BFS queues
+	// Our copy of the search header
+	private static int searchState;
+	private static int searchPriority;
+	private static int searchPage;
+	private static int searchDest; //The page key: movement class and cropped dest
+	private static int searchRound;
+	private static int currentCost;
+	private static int queued;
+	private static int numUnknowns;
+	private static int unknownScan;
+	private static int unknownsKept;
+	private static int pendingSeeds;
+	private static int seedsUsed;
+	private static int lastBin;
+	private static int numInvalid;
+	private static int nextInvalid;
+	private static int tileChangesSeen;
+	private static boolean sourcesChanged;
+	private static boolean overflow;
+	private static boolean unknownOverflow;
+	private static int numSources;
+	private static int restartKey = -1; //A restart we haven't been able to act on yet
+	private static int clearNext; //The next cost channel to scan when we have lost track of the unknown tiles
+	private static int searchEpoch; //Stamped on the cost blocks and bins this search has written
+	private static int[] loaded = new int[H_SOURCES - H_SEARCH]; // The header as we read it so we only write back what has changed
+	private static int[] saved = new int[H_SOURCES - H_SEARCH];
+	private static int slice = 0; //Counts the slices we have taken so we know which buckets we have read in this one
+	private static int[] bucketSlice = new int[NUM_BUCKETS]; //Buckets are only read when a slice uses them
+	private static int[] buckets = new int[NUM_BUCKETS];
+	private static int[] loadedBuckets = new int[NUM_BUCKETS];
+	private static int blockStamp = 0; //Counts slices and new epochs so we know which cost blocks we have checked
+	private static int[] blockChecked = new int[COST_CHANNELS / BLOCK_CHANNELS]; //The blockStamp when a block was last found to hold our epoch
+	private static int pageEpoch = 0; //Every word we write to the page is stamped with this so stale results are ignored
+	private static int threatRound = -1; //The round we last read the enemy towers
+	private static int numThreats;
+	private static int[] threats = new int[7]; // Same format as H_THREAT_LIST
+	private static int[] threatX = new int[7];
+	private static int[] threatY = new int[7];
+	private static int[] threatRange = new int[7];
+	private static int[] threatColumns; // Bit i is set if threat i reaches this (cropped) column
+	private static int threatColumnsFor = -1; // The number of threats when we last set threatColumns
 
 	private static Direction[] dirs = new Direction[] { Direction.NORTH_WEST, Direction.SOUTH_WEST, Direction.SOUTH_EAST, Direction.NORTH_EAST,
 			Direction.NORTH, Direction.WEST, Direction.SOUTH, Direction.EAST };
 	private static int[] dirsX = new int[] { 1, 1, -1, -1, 0, 1, 0, -1 };
 	private static int[] dirsY = new int[] { 1, -1, -1, 1, 1, 0, -1, 0 };
+	private static int[] dirsCost = new int[] { DIAGONAL_COST, DIAGONAL_COST, DIAGONAL_COST, DIAGONAL_COST, MOVE_COST, MOVE_COST, MOVE_COST, MOVE_COST };
+	// The direction index pointing the other way is i ^ 2
 
-	private static MapLocation previousDest = null;
-	private static int previousRoundWorked = -1;
-	private static int previousPage = -1;
-
-	// initialize the BFS algorithm
-	private void initQueue(MapLocation dest) {
-		processed = new boolean[MAP_WIDTH][MAP_HEIGHT];
-		locQueues = new int[MAX_QUEUE_SIZE*NUM_QUEUES]; //data is xxxxxxxxyyyyyyyyaaaaaaaaaaaaaaaa (x, y coord, a = 10*number of action delays (dist))
-		currentQ = 0;
-		containsUnknowns = false;
-		for (int i=0; i<NUM_QUEUES; i++) {
-			qHeads[i] = i*MAX_QUEUE_SIZE;
-			qTails[i] = i*MAX_QUEUE_SIZE;
-		}
-		
+	// The terrain cache, for robots that want it without taking part in the search
+	public MapInfo map() {
 		if (map == null)
-			map = new MapInfo(rc); // This will cache the terrain type for each tile
+			map = new MapInfo(rc);
+		return map;
+	}
+	
+	// A robot that runs out of bytecodes part way through a slice carries on next round, so we lock the search
+	// while we hold a copy of it. If the lock is held by a robot that has died we start the search again.
+	// Returns false if someone else holds the lock or we don't have enough bytecodes left for a useful slice
+	private boolean lockSearch(int stopWhen) throws GameActionException {
+		if (Clock.getBytecodesLeft() < stopWhen + LOAD_COST + MAX_STEP + SAVE_COST)
+			return false; // We would overrun our bytecodes holding the lock
+		if (map == null) { // This will cache the terrain type for each tile - it is expensive so we set it up before taking the lock
+			map = new MapInfo(rc);
+			return false;
+		}
+		int now = Clock.getRoundNum();
+		int lock = rc.readBroadcast(H_LOCK);
+		if (lock != 0 && now + 1 - lock <= LOCK_TIMEOUT)
+			return false;
+		rc.broadcast(H_LOCK, now + 1);
+		loadSearch();
+		if (lock != 0 && searchState != S_NONE) // The last robot died part way through a slice
+			startAgain();
+		return true;
+	}
+	
+	private void unlockSearch() throws GameActionException {
+		saveSearch();
+		rc.broadcast(H_LOCK, 0);
+	}
 
-		// Push dest onto queue - if we have supplied the enemyHQ use this to mean all enemy towers and HQ
-		if (dest.equals(rc.senseEnemyHQLocation())) {
-			MapLocation ehq = rc.senseEnemyHQLocation();
-			locQueues[0] = (cropX(ehq.x) << 24) | (cropY(ehq.y)<< 16);
-			qTails[0]++;
-			processed[cropX(ehq.x)][cropY(ehq.y)] = true;
-			for (MapLocation t: rc.senseEnemyTowerLocations()) {
-				locQueues[qTails[0]++] = (cropX(t.x) << 24) | (cropY(t.y)<< 16);
-				processed[cropX(t.x)][cropY(t.y)] = true;
-			}
-		} else {
-			locQueues[0] = (cropX(dest.x) << 24) | (cropY(dest.y) << 16);
-			qTails[0]++;
-			processed[cropX(dest.x)][cropY(dest.y)] = true;
+	private void loadSearch() throws GameActionException {
+		for (int i = loaded.length; i-- > 0;)
+			loaded[i] = rc.readBroadcast(H_SEARCH + i);
+		int data = loaded[0];
+		searchState = data >> 28;
+		searchPriority = (data >> 26) & 0x3;
+		searchPage = (data >> 22) & 0xf;
+		pageEpoch = (data >> 15) & 0x7f;
+		searchDest = data & 0x7fff;
+		searchRound = loaded[H_ROUND - H_SEARCH];
+		currentCost = loaded[H_COST - H_SEARCH];
+		queued = loaded[H_QUEUED - H_SEARCH];
+		data = loaded[H_UNKNOWNS - H_SEARCH];
+		numUnknowns = data & 0x7ff;
+		unknownScan = (data >> 11) & 0x7ff;
+		unknownsKept = data >> 22;
+		data = loaded[H_SEEDS - H_SEARCH];
+		pendingSeeds = data & 0x3ff;
+		seedsUsed = (data >> 10) & 0x3ff;
+		lastBin = (data >> 20) - 1;
+		data = loaded[H_INVALID - H_SEARCH];
+		numInvalid = data & 0x7ff;
+		nextInvalid = data >> 11;
+		tileChangesSeen = loaded[H_CHANGES - H_SEARCH];
+		data = loaded[H_FLAGS - H_SEARCH];
+		sourcesChanged = (data & 1) != 0;
+		overflow = (data & 2) != 0;
+		unknownOverflow = (data & 4) != 0;
+		numSources = (data >> 3) & 0x7;
+		clearNext = (data >> 6) & 0x1fff;
+		searchEpoch = data >>> 19;
+		slice++;
+		blockStamp++;
+	}
+
+	private void saveSearch() throws GameActionException {
+		int[] data = saved;
+		data[0] = (searchState << 28) | (searchPriority << 26) | (searchPage << 22) | (pageEpoch << 15) | searchDest;
+		data[H_ROUND - H_SEARCH] = searchRound;
+		data[H_COST - H_SEARCH] = currentCost;
+		data[H_QUEUED - H_SEARCH] = queued;
+		data[H_UNKNOWNS - H_SEARCH] = numUnknowns | (unknownScan << 11) | (unknownsKept << 22);
+		data[H_SEEDS - H_SEARCH] = pendingSeeds | (seedsUsed << 10) | ((lastBin + 1) << 20);
+		data[H_INVALID - H_SEARCH] = numInvalid | (nextInvalid << 11);
+		data[H_CHANGES - H_SEARCH] = tileChangesSeen;
+		data[H_FLAGS - H_SEARCH] = (sourcesChanged ? 1 : 0) | (overflow ? 2 : 0) | (unknownOverflow ? 4 : 0) | (numSources << 3) | (clearNext << 6) | (searchEpoch << 19);
+		for (int i = data.length; i-- > 0;) {
+			if (data[i] != loaded[i])
+				rc.broadcast(H_SEARCH + i, data[i]);
+		}
+		for (int i = NUM_BUCKETS; i-- > 0;) {
+			if (bucketSlice[i] == slice && buckets[i] != loadedBuckets[i])
+				rc.broadcast(H_BUCKETS + i, buckets[i]);
 		}
-		//System.out.println("Cleanser BFS to " + dest + ", start round " + Clock.getRoundNum());
+	}
+	
+	// Returns head | tail << 16 for bucket b, reading it if this slice hasn't used it yet
+	private int getBucket(int b) throws GameActionException {
+		if (bucketSlice[b] != slice) {
+			bucketSlice[b] = slice;
+			loadedBuckets[b] = buckets[b] = rc.readBroadcast(H_BUCKETS + b);
+		}
+		return buckets[b];
 	}
 
-	// Computers calls this function to spend spare bytecodes computing paths for other units
-	// Returns true if the work is done
-	public boolean work(MapLocation dest, int priority, int stopWhen, boolean restart) {
+	// The HQ and computers call this function to spend spare bytecodes computing paths for other units
+	// If the shared search is busy with another destination of the same or higher priority we help with that instead
+	// A search of lower priority is only replaced once it is complete so pages don't keep being started again
+	// If restart is set the sources have changed (e.g. a tower has been destroyed) - this replaces a search for another
+	// destination of the same or lower priority straight away, and is remembered until we get a slice
+	// Returns true if the work is done, i.e. the page for this destination is complete (even if the search is busy with
+	// another one) so callers can move on to their next destination
+	public boolean work(MapLocation dest, int movement, int priority, int stopWhen, boolean restart) {
+		int target = pageKey(dest, movement);
+		if (restart)
+			restartKey = target;
 		try {
-			int page = findFreePage(dest, priority, restart);
-			if (page == -1) {
-				return true; // We can't do any work, or don't have to
+			// On a large map the page can take hundreds of rounds to reach the far side, so one round in four (one in
+			// eight once it is ready) we work on the coarse route to our main destination instead. These are odd rounds
+			// as the HQ plans production on even ones, and if we can't take a slice of it we carry on with the search
+			if (movement == GROUND && priority == PRIORITY_HIGH && map != null && Clusters.largeMap(map) &&
+					Clock.getRoundNum() % (clusters.isSolved(dest) ? 8 : 4) == 1 && clusters.work(dest, map, stopWhen))
+				return false;
+			
+			if (!lockSearch(stopWhen))
+				return false;
+			
+			restart = (restartKey == target);
+			if (restart)
+				restartKey = -1;
+			if (searchState != S_NONE && searchDest == target) {
+				if (restart)
+					sourcesChanged = true;
+			} else if (restart || !pageIsComplete(target)) {
+				boolean complete = (searchState == S_DONE && numUnknowns == 0 && !unknownOverflow && !overflow);
+				if (searchState == S_NONE || complete || searchPriority < priority || (restart && searchPriority == priority) ||
+						Clock.getRoundNum() - searchRound > STALE_ROUNDS) {
+					int page = findFreePage(target, priority, true); // There is only one search so a page for our dest isn't being worked on
+					if (page != -1)
+						startSearch(target, page, priority);
+				}
+				if (restart && searchDest != target) // A more important search is running so we try again later
+					restartKey = target;
 			}
-			return doWork(dest, priority, stopWhen, page);
+			
+			boolean done = false;
+			if (searchState != S_NONE)
+				done = doWork(stopWhen) && searchDest == target;
+			unlockSearch();
+			if (searchDest != target && !restart) // We helped with another destination - ours may already be complete
+				done = pageIsComplete(target);
+			return done;
 		} catch (GameActionException e) {
 			System.out.println("Bfs exception");
 			//e.printStackTrace();
@@ -217,126 +456,801 @@ public class Bfs {
 		return false;
 	}
 	
-	private boolean doWork(MapLocation dest, int priority, int stopWhen, int page) throws GameActionException {
-		if (!dest.equals(previousDest)) {
-			initQueue(dest);
+	private void startSearch(int dest, int page, int priority) throws GameActionException {
+		searchDest = dest;
+		searchPage = page;
+		searchPriority = priority;
+		claimPage(page, dest);
+		startAgain();
+	}
+	
+	// Moving on to a new epoch forgets every cost and seed bin the search has written
+	private void startAgain() {
+		searchState = S_STARTING;
+		searchEpoch = (searchEpoch + 1) & EPOCH_MASK;
+		if (searchEpoch == 0)
+			searchEpoch = 1;
+		blockStamp++;
+	}
+	
+	// Results left in the page for a different destination must not be used, so we move the page on to the next epoch
+	// If the page is already for our destination we keep the epoch and the old results stay readable while we recompute
+	private void claimPage(int page, int dest) throws GameActionException {
+		int pageDest = readPageDest(page);
+		pageEpoch = getDestEpoch(pageDest);
+		if (readPageMetadata(page) == 0 || getDestKey(pageDest) != dest) {
+			pageEpoch = (pageEpoch + 1) & 0x7f;
+			writePageDest(page, dest, pageEpoch);
+			rebuildDirectory(page);
 		}
+	}
+	
+	// initialize the BFS algorithm
+	private void initQueue() throws GameActionException {
+		searchState = S_SEARCHING;
+		currentCost = 0;
+		queued = 0;
+		numUnknowns = 0;
+		unknownOverflow = false;
+		pendingSeeds = 0;
+		seedsUsed = 0;
+		lastBin = -1;
+		numInvalid = 0;
+		nextInvalid = 0;
+		sourcesChanged = false;
+		overflow = false;
+		for (int i=0; i<NUM_BUCKETS; i++) {
+			rc.broadcast(H_BUCKETS + i, 0);
+			bucketSlice[i] = slice;
+			loadedBuckets[i] = buckets[i] = 0;
+		}
+		// Buildings placed before we started still block the way
+		tileChangesSeen = Math.max(0, rc.readBroadcast(tileChangeCountChannel) - MAX_TILE_CHANGES);
+
+		// Push dest onto queue - if we have supplied the enemyHQ use this to mean all enemy towers and HQ
+		int[] now = getSources();
+		numSources = now.length;
+		for (int i=0; i<now.length; i++) {
+			rc.broadcast(H_SOURCES + i, now[i]);
+			pushSource(now[i] >> 7, now[i] & 0x7f);
+		}
+		rc.broadcast(H_THREATS, numThreats);
+		for (int i=0; i<numThreats; i++)
+			rc.broadcast(H_THREAT_LIST + i, threats[i]);
+		//System.out.println("Cleanser BFS to " + searchDest + ", start round " + Clock.getRoundNum());
+	}
+	
+	// The cropped tiles the search starts from
+	private int[] getSources() {
+		MapLocation ehq = rc.senseEnemyHQLocation();
+		int dest = searchDest & 0x3fff;
+		if (dest == cropPacked(ehq)) {
+			MapLocation[] towers = rc.senseEnemyTowerLocations();
+			int[] result = new int[towers.length+1];
+			result[0] = dest;
+			for (int i=0; i<towers.length; i++)
+				result[i+1] = cropPacked(towers[i]);
+			return result;
+		}
+		return new int[] { dest };
+	}
 
-		previousDest = dest;
-		previousPage = page;
-		previousRoundWorked = Clock.getRoundNum();
-				
-		int emptyCount = 0;
-		while (emptyCount < NUM_QUEUES && qHeads[currentQ] == qTails[currentQ]) {//Skip over empty queues
-			emptyCount++;
-			currentQ = (currentQ + 1) % NUM_QUEUES;
+	// Sources cost nothing to reach and are never published
+	private void pushSource(int x, int y) throws GameActionException {
+		setCost(x, y, 1 << 3);
+		push(x, y, currentCost);
+	}
+	
+	private void push(int x, int y, int cost) throws GameActionException {
+		int b = cost % NUM_BUCKETS;
+		int data = getBucket(b);
+		int tail = data >>> 16;
+		int next = tail + 1;
+		if (next == BUCKET_SIZE)
+			next = 0;
+		if (next == (data & 0xffff)) { // The bucket is full
+			overflow = true;
+			return;
 		}
-		if (emptyCount == NUM_QUEUES)
-			return true; //Finished
+		rc.broadcast(bucketBaseChannel + b * BUCKET_SIZE + tail, (x << 24) | (y << 16) | cost);
+		buckets[b] = (data & 0xffff) | (next << 16);
+		queued++;
+	}
+	
+	// Returns true if the search is finished and has no unknowns
+	private boolean doWork(int stopWhen) throws GameActionException {
+		searchRound = Clock.getRoundNum();
+		updateThreats();
+		boolean repairStarted = false;
 		
-		while (Clock.getBytecodesLeft() > stopWhen) {			
-			// pop a location from the queue
-			int data = locQueues[qHeads[currentQ]];
-			int locX = data >> 24;
-			int locY = (data >> 16) & 0xff;
-			double delay = (data & 0xffff) / 10;
-			if (++qHeads[currentQ] % MAX_QUEUE_SIZE == 0)
-				qHeads[currentQ] -= MAX_QUEUE_SIZE;
+		while (Clock.getBytecodesLeft() > stopWhen + MAX_STEP + SAVE_COST) {
+			switch (searchState) {
+			case S_STARTING:
+				if (Clock.getBytecodesLeft() < stopWhen + START_COST + SAVE_COST)
+					return false; // Nothing to save until the sources are pushed
+				initQueue();
+				continue;
+			case S_SEARCHING:
+				searchStep();
+				continue;
+			case S_INVALIDATING:
+				invalidateStep();
+				continue;
+			case S_SEEDING:
+				seedStep();
+				continue;
+			case S_SCANNING:
+				scanStep();
+				continue;
+			case S_SCANNING_ALL:
+				scanAllStep();
+				continue;
+			}
 			
-			for (int i = 8; i-- > 0;) {
-				int x = cropX(locX + dirsX[i]);
-				int y = cropY(locY + dirsY[i]);
-				boolean isDiagonal = (i<=3);				
-				
-				if (!processed[x][y]) {
-					processed[x][y] = true;
-					TerrainTile t = map.tile(x, y);
-					
-					if (t.isTraversable()) {
-						MapLocation newLoc = new MapLocation(x, y);
-						// push newLoc onto queue - pick queue according to how long the move takes
-						double newDelay;
-						if (isDiagonal)
-							newDelay = diagonalDelay;
+			// The pass is finished - look for anything that needs repairing
+			if (repairStarted)
+				break;
+			repairStarted = true;
+			startRepair();
+		}
+		
+		boolean finished = (searchState == S_DONE);
+		if (searchState != S_STARTING)
+			writePageMetadata(searchPage, searchRound, searchDest & 0x3fff, searchPriority, finished, numUnknowns > 0 || unknownOverflow || overflow);
+		return (finished && numUnknowns == 0 && !unknownOverflow && !overflow);
+	}
+	
+	// Expand one tile
+	private void searchStep() throws GameActionException {
+		if (queued == 0) {
+			if (pendingSeeds > 0)
+				injectNextBin();
+			else
+				searchState = S_DONE;
+			return;
+		}
+		
+		int b = currentCost % NUM_BUCKETS;
+		int bucket = getBucket(b);
+		int head = bucket & 0xffff;
+		if (head == (bucket >>> 16)) { //Skip over empty buckets
+			currentCost++;
+			if (pendingSeeds > 0 && currentCost % NUM_BUCKETS == 0 && currentCost < NUM_BINS * NUM_BUCKETS)
+				injectBin(currentCost / NUM_BUCKETS);
+			return;
+		}
+		
+		// pop a location from the bucket
+		int data = rc.readBroadcast(bucketBaseChannel + b * BUCKET_SIZE + head);
+		if (++head == BUCKET_SIZE)
+			head = 0;
+		buckets[b] = (bucket & 0xffff0000) | head;
+		queued--;
+		
+		int locX = data >> 24;
+		int locY = (data >> 16) & 0xff;
+		int cost = data & 0xffff;
+		int best = getCost(locX, locY);
+		if ((best >> 3) != cost + 1 || best == UNPATHABLE)
+			return; // A cheaper route to this tile was found after this entry was queued
+		
+		// The cost is now final so this is the best direction out of this tile
+		if (cost > 0)
+			publishResult(searchPage, locX, locY, dirs[best & 0x7], cost / 10);
+		
+		// This is the inner loop so we read and write the cost table directly rather than use getCost and setCost
+		int penalty = threatCost(locX, locY);
+		for (int i = 8; i-- > 0;) {
+			int x = locX + dirsX[i];
+			if (x < 0)
+				x += MAP_WIDTH;
+			else if (x >= MAP_WIDTH)
+				x -= MAP_WIDTH;
+			int y = locY + dirsY[i];
+			if (y < 0)
+				y += MAP_HEIGHT;
+			else if (y >= MAP_HEIGHT)
+				y -= MAP_HEIGHT;
+			
+			int index = MAP_HEIGHT * x + y;
+			int channel = costBaseChannel + (index >> 1);
+			int block = index >> 4;
+			int pair = 0;
+			if (blockChecked[block] == blockStamp || isOurBlock(block))
+				pair = rc.readBroadcast(channel);
+			int shift = (index & 1) << 4;
+			int known = (pair >>> shift) & 0xffff;
+			int newCost = cost + dirsCost[i] + penalty;
+			if (known == 0) { // First time we have reached this tile
+				TerrainTile t = terrain(x, y);
+				if (blockChecked[block] != blockStamp)
+					claimBlock(block);
+				if (!t.isTraversable()) {
+					if (t == TerrainTile.UNKNOWN) {
+						if (numUnknowns < MAX_UNKNOWNS)
+							rc.broadcast(unknownBaseChannel + numUnknowns++, (x << 7) | y);
 						else
-							newDelay = moveDelay;
-						int newQ = (currentQ + (int)(newDelay + (delay % 1))) % NUM_QUEUES;
-						newDelay += delay;
-						locQueues[qTails[newQ]] = (x << 24) | (y << 16) | (int)(newDelay*10);
-						if (++qTails[newQ] % MAX_QUEUE_SIZE == 0)
-							qTails[newQ] -= MAX_QUEUE_SIZE;
-						//System.out.print("Adding " + x + ", " + y + " to queue " + newQ + " element " + qTails[newQ] + "\n");
-						publishResult(page, newLoc, dest, dirs[i], (int)newDelay);
-					} else if (t == TerrainTile.UNKNOWN)
-						containsUnknowns = true;
+							unknownOverflow = true;
+						rc.broadcast(channel, pair | (UNKNOWN_TILE << shift));
+					} else {
+						rc.broadcast(channel, pair | (UNPATHABLE << shift));
+					}
+					continue;
 				}
+			} else if (known >= UNKNOWN_TILE || (known >> 3) <= newCost + 1) {
+				continue;
 			}
-			emptyCount = 0;
-			while (emptyCount < NUM_QUEUES && qHeads[currentQ] == qTails[currentQ]) {//Skip over empty queues
-				emptyCount++;
-				currentQ = (currentQ + 1) % NUM_QUEUES;
+			if (newCost > MAX_COST)
+				continue;
+			
+			// push onto the bucket for the new cost
+			rc.broadcast(channel, (pair & ~(0xffff << shift)) | ((((newCost + 1) << 3) | i) << shift));
+			push(x, y, newCost);
+		}
+	}
+	
+	// The terrain as seen by the movement class of the search
+	private TerrainTile terrain(int x, int y) {
+		if ((searchDest >> 14) == AIR)
+			return map.flightTile(x, y);
+		return map.tile(x, y);
+	}
+	
+	// Collect the work for everything that has changed since the last pass
+	private void startRepair() throws GameActionException {
+		if (overflow) { // We lost track of something so start again
+			startAgain();
+			return;
+		}
+		
+		// A robot may have told us the sources changed in a slice it couldn't take, so we also check the count
+		int[] now = getSources();
+		if (sourcesChanged || now.length != numSources) {
+			sourcesChanged = false;
+			repairSources(now);
+		}
+		repairThreats();
+		
+		int changes = rc.readBroadcast(tileChangeCountChannel);
+		if (changes - tileChangesSeen > MAX_TILE_CHANGES) //We have missed some
+			tileChangesSeen = changes - MAX_TILE_CHANGES;
+		while (tileChangesSeen < changes) {
+			int data = rc.readBroadcast(tileChangeBaseChannel + (tileChangesSeen % MAX_TILE_CHANGES));
+			tileChangesSeen++;
+			blockTile(data >> 7, data & 0x7f);
+		}
+		
+		if (numInvalid > 0) {
+			searchState = S_INVALIDATING;
+			nextInvalid = 0;
+		} else {
+			startScan();
+		}
+	}
+	
+	private void startScan() {
+		if (unknownOverflow) {
+			searchState = S_SCANNING_ALL;
+			unknownOverflow = false;
+			numUnknowns = 0;
+			clearNext = 0;
+		} else if (numUnknowns > 0) {
+			searchState = S_SCANNING;
+			unknownScan = 0;
+			unknownsKept = 0;
+		} else {
+			startPass();
+		}
+	}
+	
+	// Run a pass over the seeds we have collected (if there are none we are done again)
+	private void startPass() {
+		searchState = (pendingSeeds > 0) ? S_SEARCHING : S_DONE;
+		lastBin = -1;
+	}
+	
+	// Check one of the tiles we couldn't sense last time
+	private void scanStep() throws GameActionException {
+		if (unknownScan == numUnknowns) {
+			numUnknowns = unknownsKept;
+			startPass();
+			return;
+		}
+		
+		int data = rc.readBroadcast(unknownBaseChannel + unknownScan++);
+		int x = data >> 7;
+		int y = data & 0x7f;
+		TerrainTile t = terrain(x, y);
+		if (t == TerrainTile.UNKNOWN) {
+			if (unknownsKept != unknownScan - 1)
+				rc.broadcast(unknownBaseChannel + unknownsKept, data);
+			unknownsKept++;
+		} else if (getCost(x, y) == UNKNOWN_TILE) {
+			if (t.isTraversable())
+				seedTile(x, y);
+			else
+				setCost(x, y, UNPATHABLE);
+		}
+	}
+	
+	// Check the two tiles in the next channel of the cost table, listing any that are still unknown
+	private void scanAllStep() throws GameActionException {
+		if (clearNext == COST_CHANNELS) {
+			startPass();
+			return;
+		}
+		
+		if (!isOurBlock(clearNext / BLOCK_CHANNELS)) { // Nothing in it has been reached
+			clearNext += BLOCK_CHANNELS - clearNext % BLOCK_CHANNELS;
+			return;
+		}
+		int data = rc.readBroadcast(costBaseChannel + clearNext);
+		int index = clearNext << 1;
+		clearNext++;
+		if ((data & 0xffff) == UNKNOWN_TILE)
+			scanTile(index / MAP_HEIGHT, index % MAP_HEIGHT);
+		if ((data >>> 16) == UNKNOWN_TILE)
+			scanTile((index + 1) / MAP_HEIGHT, (index + 1) % MAP_HEIGHT);
+	}
+	
+	private void scanTile(int x, int y) throws GameActionException {
+		TerrainTile t = terrain(x, y);
+		if (t == TerrainTile.UNKNOWN) {
+			if (numUnknowns < MAX_UNKNOWNS)
+				rc.broadcast(unknownBaseChannel + numUnknowns++, (x << 7) | y);
+			else
+				unknownOverflow = true;
+		} else if (t.isTraversable()) {
+			seedTile(x, y);
+		} else {
+			setCost(x, y, UNPATHABLE);
+		}
+	}
+	
+	// When the pass runs dry we jump straight to the cost of the next bin with seeds in it
+	private void injectNextBin() throws GameActionException {
+		for (int bin = lastBin + 1; bin < NUM_BINS; bin++) {
+			if (readBin(bin) != 0) {
+				currentCost = bin * NUM_BUCKETS;
+				injectBin(bin);
+				return;
 			}
-			if (emptyCount == NUM_QUEUES) {	
-				//map.dump();
-				break;
+		}
+		pendingSeeds = 0; // Shouldn't happen
+	}
+	
+	// Push all the seeds in this bin into the buckets - the bin covers exactly the costs the buckets can hold
+	private void injectBin(int bin) throws GameActionException {
+		lastBin = bin;
+		int next = readBin(bin);
+		if (next == 0)
+			return;
+		rc.broadcast(binBaseChannel + bin, 0);
+		while (next != 0) {
+			int data = rc.readBroadcast(seedBaseChannel + next - 1);
+			next = data >> 14;
+			pendingSeeds--;
+			int x = (data >> 7) & 0x7f;
+			int y = data & 0x7f;
+			int known = getCost(x, y);
+			int cost = (known >> 3) - 1;
+			if (known < UNKNOWN_TILE && cost >= currentCost && cost < currentCost + NUM_BUCKETS)
+				push(x, y, cost); // Otherwise it has been given a better route since
+		}
+		if (pendingSeeds == 0)
+			seedsUsed = 0;
+	}
+	
+	// Give a tile the cheapest cost we can from its neighbours and remember it as a seed
+	// If none of the neighbours have a route the tile goes back to being unreached
+	private void seedTile(int x, int y) throws GameActionException {
+		int best = 0;
+		for (int j = 8; j-- > 0;) {
+			int nx = x + dirsX[j];
+			if (nx < 0)
+				nx += MAP_WIDTH;
+			else if (nx >= MAP_WIDTH)
+				nx -= MAP_WIDTH;
+			int ny = y + dirsY[j];
+			if (ny < 0)
+				ny += MAP_HEIGHT;
+			else if (ny >= MAP_HEIGHT)
+				ny -= MAP_HEIGHT;
+			
+			int known = getCost(nx, ny);
+			if (known > 0 && known < UNKNOWN_TILE) {
+				int newCost = (known >> 3) + dirsCost[j] + threatCost(nx, ny); // This is one more than the real cost
+				if (best == 0 || newCost < (best >> 3))
+					best = (newCost << 3) | (j ^ 2);
+			}
+		}
+		if (best != 0 && (best >> 3) > MAX_COST)
+			best = 0;
+		setCost(x, y, best);
+		if (best != 0)
+			addSeed(x, y, (best >> 3) - 1);
+	}
+	
+	private void addSeed(int x, int y, int cost) throws GameActionException {
+		int bin = cost / NUM_BUCKETS;
+		if (seedsUsed == MAX_SEEDS || bin >= NUM_BINS) {
+			overflow = true;
+			return;
+		}
+		rc.broadcast(seedBaseChannel + seedsUsed, (readBin(bin) << 14) | (x << 7) | y);
+		rc.broadcast(binBaseChannel + bin, (searchEpoch << 10) | ++seedsUsed);
+		pendingSeeds++;
+	}
+	
+	// Reset the costs of every tile whose route passes through one in the work list
+	private void invalidateStep() throws GameActionException {
+		if (nextInvalid == numInvalid) {
+			searchState = S_SEEDING;
+			nextInvalid = 0;
+			return;
+		}
+		int data = rc.readBroadcast(invalidBaseChannel + nextInvalid++);
+		if ((data & RELIEVED) != 0)
+			return;
+		int tx = data >> 7;
+		int ty = data & 0x7f;
+		for (int j = 8; j-- > 0;) {
+			int nx = tx + dirsX[j];
+			if (nx < 0)
+				nx += MAP_WIDTH;
+			else if (nx >= MAP_WIDTH)
+				nx -= MAP_WIDTH;
+			int ny = ty + dirsY[j];
+			if (ny < 0)
+				ny += MAP_HEIGHT;
+			else if (ny >= MAP_HEIGHT)
+				ny -= MAP_HEIGHT;
+			
+			int known = getCost(nx, ny);
+			if (known < UNKNOWN_TILE && (known >> 3) > 1 && (known & 0x7) == j) { // It isn't a source and it moves to this tile
+				setCost(nx, ny, 0);
+				addInvalid(nx, ny);
+			}
+		}
+	}
+	
+	// Seed the tiles in the work list from the tiles around them
+	private void seedStep() throws GameActionException {
+		if (nextInvalid == numInvalid) {
+			numInvalid = 0;
+			nextInvalid = 0;
+			startScan();
+			return;
+		}
+		int data = rc.readBroadcast(invalidBaseChannel + nextInvalid++);
+		int x = (data >> 7) & 0x7f;
+		int y = data & 0x7f;
+		int known = getCost(x, y);
+		if ((data & RELIEVED) != 0) {
+			if (known > 0 && known < UNKNOWN_TILE)
+				addSeed(x, y, (known >> 3) - 1); // Expand it again so its neighbours see the cheaper move off it
+		} else if (known == 0) {
+			seedTile(x, y);
+		}
+	}
+	
+	// The caller sets the new cost of the tile first
+	private void addInvalid(int x, int y) throws GameActionException {
+		if (numInvalid == MAX_INVALID) {
+			overflow = true;
+			return;
+		}
+		rc.broadcast(invalidBaseChannel + numInvalid++, (x << 7) | y);
+	}
+	
+	// A building now stands on this tile so ground units can't pass
+	private void blockTile(int x, int y) throws GameActionException {
+		int known = getCost(x, y);
+		setCost(x, y, UNPATHABLE);
+		if (known > 0 && known < UNKNOWN_TILE)
+			addInvalid(x, y);
+	}
+	
+	// Sources that have gone (e.g. a destroyed tower) lose their routes and new ones are added as seeds with no cost
+	private void repairSources(int[] now) throws GameActionException {
+		int[] old = new int[numSources];
+		for (int i=0; i<numSources; i++)
+			old[i] = rc.readBroadcast(H_SOURCES + i);
+		
+		for (int i=0; i<old.length; i++) {
+			boolean found = false;
+			for (int j=0; j<now.length; j++)
+				if (now[j] == old[i])
+					found = true;
+			if (!found) {
+				int x = old[i] >> 7;
+				int y = old[i] & 0x7f;
+				setCost(x, y, 0);
+				addInvalid(x, y);
+			}
+		}
+		for (int j=0; j<now.length; j++) {
+			boolean found = false;
+			for (int i=0; i<old.length; i++)
+				if (now[j] == old[i])
+					found = true;
+			if (!found) {
+				int x = now[j] >> 7;
+				int y = now[j] & 0x7f;
+				setCost(x, y, 1 << 3);
+				addSeed(x, y, 0);
 			}
 		}
 		
-		writePageMetadata(page, previousRoundWorked, dest, priority, (emptyCount == NUM_QUEUES));
-		return (emptyCount == NUM_QUEUES && containsUnknowns == false);
+		numSources = now.length;
+		for (int j=0; j<now.length; j++)
+			rc.broadcast(H_SOURCES + j, now[j]);
 	}
-
-	private int locChannel(int page, MapLocation loc) {
-		return PAGE_SIZE * page + MAP_HEIGHT * cropX(loc.x) + cropY(loc.y);
+	
+	// Enemy towers that have been destroyed (and the HQ losing its range when they go) no longer charge for the
+	// tiles around them. Those tiles keep their routes but moving off them is now cheaper, so they are put in
+	// the work list to be pushed again at their own cost and the cheaper routes spread out from there
+	private void repairThreats() throws GameActionException {
+		int old = rc.readBroadcast(H_THREATS);
+		boolean changed = (old != numThreats);
+		for (int i=0; i<old; i++) {
+			int data = rc.readBroadcast(H_THREAT_LIST + i);
+			boolean found = false;
+			for (int j=0; j<numThreats; j++)
+				if (threats[j] == data)
+					found = true;
+			if (!found) {
+				changed = true;
+				relieveZone((data >> 7) & 0x7f, data & 0x7f, data >> 14);
+			}
+		}
+		if (changed) {
+			rc.broadcast(H_THREATS, numThreats);
+			for (int i=0; i<numThreats; i++)
+				rc.broadcast(H_THREAT_LIST + i, threats[i]);
+		}
 	}
-
-	// We store the data in this format:
-	// 1000ddddaaaaaaaaxxxxxxxxyyyyyyyy
-	// 1 = validation to prevent mistaking the initial 0 value for a valid pathing instruction
-	// d = direction to move (enum ordinal)
-	// a = actions (turns) to move here
-	// x = x coordinate of destination
-	// y = y coordinate of destination
-	private void publishResult(int page, MapLocation here, MapLocation dest, Direction dir, int actions) {
-		int data = 0x80;
-		data |= dir.ordinal();
-		data <<= 8;
-		data |= actions;
-		data <<= 8;
-		data |= cropX(dest.x);
-		data <<= 8;
-		data |= cropY(dest.y);
-		int channel = locChannel(page, here);
+	
+	private void relieveZone(int tx, int ty, int range) throws GameActionException {
+		int r = (int) Math.sqrt(range);
+		for (int dx = -r; dx <= r; dx++) {
+			int x = (tx + dx + MAP_WIDTH) % MAP_WIDTH;
+			for (int dy = -r; dy <= r; dy++) {
+				if (dx * dx + dy * dy < range) {
+					if (numInvalid == MAX_INVALID) {
+						overflow = true;
+						return;
+					}
+					rc.broadcast(invalidBaseChannel + numInvalid++, RELIEVED | (x << 7) | ((ty + dy + MAP_HEIGHT) % MAP_HEIGHT));
+				}
+			}
+		}
+	}
+	
+	// Read the enemy towers and HQ (once a round) - the HQ range matches Threats.update
+	private void updateThreats() {
+		int round = Clock.getRoundNum();
+		if (round == threatRound)
+			return;
+		threatRound = round;
+		MapLocation[] towers = rc.senseEnemyTowerLocations();
+		numThreats = 0;
+		for (int i=0; i<towers.length; i++)
+			addThreat(towers[i], RobotType.TOWER.attackRadiusSquared);
+		addThreat(rc.senseEnemyHQLocation(), (towers.length >= 2) ? GameConstants.HQ_BUFFED_ATTACK_RADIUS_SQUARED : RobotType.HQ.attackRadiusSquared);
+		
+		// Towers are never added so we only need to mark the columns again when one has gone
+		if (numThreats != threatColumnsFor) {
+			threatColumnsFor = numThreats;
+			threatColumns = new int[MAP_WIDTH];
+			for (int i=0; i<numThreats; i++) {
+				int r = (int) Math.sqrt(threatRange[i]);
+				for (int dx = -r; dx <= r; dx++)
+					threatColumns[(threatX[i] + dx + MAP_WIDTH) % MAP_WIDTH] |= 1 << i;
+			}
+		}
+	}
+	
+	private void addThreat(MapLocation m, int range) {
+		int x = cropX(m.x);
+		int y = cropY(m.y);
+		threats[numThreats] = (range << 14) | (x << 7) | y;
+		threatX[numThreats] = x;
+		threatY[numThreats] = y;
+		threatRange[numThreats++] = range;
+	}
+	
+	// The extra cost of moving off this tile - like Threats we count a tile as in range if it is strictly inside the radius
+	// Most tiles are in a column no threat reaches so we check that first
+	private int threatCost(int x, int y) {
+		int column = threatColumns[x];
+		if (column == 0)
+			return 0;
+		for (int i = numThreats; i-- > 0;) {
+			if ((column & (1 << i)) == 0)
+				continue;
+			int dx = x - threatX[i];
+			if (dx > MAP_WIDTH / 2)
+				dx -= MAP_WIDTH;
+			else if (dx < -MAP_WIDTH / 2)
+				dx += MAP_WIDTH;
+			int dy = y - threatY[i];
+			if (dy > MAP_HEIGHT / 2)
+				dy -= MAP_HEIGHT;
+			else if (dy < -MAP_HEIGHT / 2)
+				dy += MAP_HEIGHT;
+			if (dx * dx + dy * dy < threatRange[i])
+				return THREAT_COST;
+		}
+		return 0;
+	}
+	
+	// Best known cost to each tile stored as ((tenths+1) << 3) | direction index, 2 tiles to a channel
+	// 0 = not reached yet, UNPATHABLE = we have checked the terrain (or a building) and can't walk on it
+	// UNKNOWN_TILE = we couldn't sense the terrain when we reached it
+	private int getCost(int x, int y) throws GameActionException {
+		int index = tileIndex(x, y);
+		if (!isOurBlock(index >> 4))
+			return 0;
+		int data = rc.readBroadcast(costBaseChannel + (index >> 1));
+		if ((index & 1) == 0)
+			return data & 0xffff;
+		return data >>> 16;
+	}
+	
+	private void setCost(int x, int y, int cost) throws GameActionException {
+		int index = tileIndex(x, y);
+		if (!isOurBlock(index >> 4))
+			claimBlock(index >> 4);
+		int channel = costBaseChannel + (index >> 1);
+		int data = rc.readBroadcast(channel);
+		if ((index & 1) == 0)
+			data = (data & 0xffff0000) | cost;
+		else
+			data = (data & 0xffff) | (cost << 16);
+		rc.broadcast(channel, data);
+	}
+	
+	// True if this block of the cost table was last written by this search (block = tile index >> 4)
+	private boolean isOurBlock(int block) throws GameActionException {
+		if (blockChecked[block] == blockStamp)
+			return true;
+		if (rc.readBroadcast(costEpochBaseChannel + block) != searchEpoch)
+			return false;
+		blockChecked[block] = blockStamp;
+		return true;
+	}
+	
+	// Zero a block left by an older search and stamp it as ours - a block no search has used is already zero
+	private void claimBlock(int block) throws GameActionException {
+		if (rc.readBroadcast(costEpochBaseChannel + block) != 0) {
+			int channel = costBaseChannel + block * BLOCK_CHANNELS;
+			for (int i = BLOCK_CHANNELS; i-- > 0;)
+				rc.broadcast(channel++, 0);
+		}
+		rc.broadcast(costEpochBaseChannel + block, searchEpoch);
+		blockChecked[block] = blockStamp;
+	}
+	
+	// The first seed + 1 in this bin, 0 if it is empty or was left by an older search
+	private int readBin(int bin) throws GameActionException {
+		int data = rc.readBroadcast(binBaseChannel + bin);
+		return (data >>> 10) == searchEpoch ? data & 0x3ff : 0;
+	}
+	
+	// Tile changes: robots that place a building report it here so pages can route around it
+	// The count of reports is stored in the first channel followed by a ring buffer of the last 32 tiles (xxxxxxxyyyyyyy)
+	private static final int tileChangeCountChannel = pageDestBaseChannel + MAX_PAGES;
+	private static final int tileChangeBaseChannel = tileChangeCountChannel + 1;
+	private static final int MAX_TILE_CHANGES = 32;
+	
+	public void reportBlocked(MapLocation m) {
 		try {
-			rc.broadcast(channel, data);
+			int count = rc.readBroadcast(tileChangeCountChannel);
+			rc.broadcast(tileChangeBaseChannel + (count % MAX_TILE_CHANGES), cropPacked(m));
+			rc.broadcast(tileChangeCountChannel, count + 1);
 		} catch (GameActionException e) {
-			e.printStackTrace();
+			System.out.println("Bfs exception");
+			//e.printStackTrace();
 		}
 	}
-
-	// Soldiers call this to get pathing directions
-	public Direction readResult(MapLocation here, MapLocation dest) {
+	
+	// Directory: maps a page key to the page holding it so readers don't have to look at every page
+	// It is a hash table with linear probing and is rebuilt from the page destinations whenever a page is claimed
+	// for a new destination (rare) so it never has deleted entries. 0 = empty slot, otherwise the format is
+	// ggggeeeeeeemxxxxxxxyyyyyyy
+	// g = page + 1 (4 bits)
+	// e = epoch of the page (7 bits)
+	// m = movement class (1 bit)
+	// x, y = cropped dest (7 bits each)
+	private static final int directoryBaseChannel = tileChangeBaseChannel + MAX_TILE_CHANGES;
+	private static final int DIRECTORY_SIZE = 32; // A power of 2 at least twice MAX_PAGES so probes are short
+	
+	private int directorySlot(int key) {
+		return (key ^ (key >> 7) ^ (key >> 10)) & (DIRECTORY_SIZE - 1);
+	}
+	
+	// The claimed page may not have any metadata yet so we always include it
+	private void rebuildDirectory(int claimed) throws GameActionException {
+		int[] slots = new int[DIRECTORY_SIZE];
 		for (int page = 0; page < NUM_PAGES; page++) {
-			int data;
-			try {
-				data = rc.readBroadcast(locChannel(page, here));
-			} catch (GameActionException e) {
-				e.printStackTrace();
-				return null;
-			}			
-			if (data != 0) { // all valid published results are != 0
-				int y = data & 0xff;
-				data >>= 8;
-				int x = data & 0xff;
-				data >>= 8;
-				int actions = data & 0xff;
-				data >>= 8;
-				int dir = data & 0xf;
-				
-				if (cropX(dest.x) == x && cropY(dest.y) == y) {
-					return Direction.values()[dir];
+			if (page != claimed && readPageMetadata(page) == 0)
+				continue;
+			int pageDest = readPageDest(page);
+			int slot = directorySlot(getDestKey(pageDest));
+			while (slots[slot] != 0)
+				slot = (slot + 1) & (DIRECTORY_SIZE - 1);
+			slots[slot] = ((page + 1) << 22) | pageDest;
+		}
+		for (int i = DIRECTORY_SIZE; i-- > 0;)
+			rc.broadcast(directoryBaseChannel + i, slots[i]);
+	}
+
+	// Each channel holds 5 tiles in this format:
+	// eeeeeeettttttttttttttttttttttttt
+	// e = epoch of the page when the channel was written (7 bits)
+	// t = 5 tiles of 5 bits each, the lowest bits holding the tile with the lowest index
+	// Each tile is stored as
+	// ccddd
+	// c = distance code (0 = no result, 1 = under 16 turns, 2 = under 64 turns, 3 = further)
+	// d = direction to move (enum ordinal)
+	private static final int EPOCH_SHIFT = 25;
+	private static Direction[] ordinals = Direction.values();
+
+	private int tileIndex(int x, int y) {
+		return MAP_HEIGHT * x + y;
+	}
+
+	// x and y are the cropped coordinates of the tile
+	private void publishResult(int page, int x, int y, Direction dir, int actions) throws GameActionException {
+		int index = tileIndex(x, y);
+		int channel = PAGE_SIZE * page + index / TILES_PER_CHANNEL;
+		int shift = (index % TILES_PER_CHANNEL) * 5;
+		int code;
+		if (actions < 16)
+			code = 1;
+		else if (actions < 64)
+			code = 2;
+		else
+			code = 3;
+		
+		int data = rc.readBroadcast(channel);
+		if ((data >>> EPOCH_SHIFT) != pageEpoch) // Left over from a previous destination
+			data = pageEpoch << EPOCH_SHIFT;
+		data = (data & ~(0x1f << shift)) | (((code << 3) | dir.ordinal()) << shift);
+		rc.broadcast(channel, data);
+	}
+
+	// Soldiers call this to get pathing directions, drones use the AIR movement class
+	// This costs a directory read (more only if destinations collide) and a page read however many pages there are
+	// If the page hasn't reached us yet ground units fall back on the coarse route
+	public Direction readResult(MapLocation here, MapLocation dest, int movement) {
+		Direction result = readPage(here, dest, movement);
+		if (result == null && movement == GROUND)
+			return clusters.route(here, dest);
+		return result;
+	}
+	
+	private Direction readPage(MapLocation here, MapLocation dest, int movement) {
+		try {
+			int target = pageKey(dest, movement);
+			int slot = directorySlot(target);
+			int entry;
+			while ((entry = rc.readBroadcast(directoryBaseChannel + slot)) != 0) {
+				if ((entry & 0x7fff) == target) {
+					int index = tileIndex(cropX(here.x), cropY(here.y));
+					int data = rc.readBroadcast(PAGE_SIZE * ((entry >>> 22) - 1) + index / TILES_PER_CHANNEL);
+					if ((data >>> EPOCH_SHIFT) != ((entry >> 15) & 0x7f))
+						return null;
+					int tile = (data >> ((index % TILES_PER_CHANNEL) * 5)) & 0x1f;
+					if (tile == 0)
+						return null;
+					return ordinals[tile & 0x7];
 				}
+				slot = (slot + 1) & (DIRECTORY_SIZE - 1);
 			}
+		} catch (GameActionException e) {
+			e.printStackTrace();
 		}
 		return null;
 	}
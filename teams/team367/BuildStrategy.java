@@ -4,97 +4,294 @@ import battlecode.common.*;
 
 /*
  * Used to record the number of each unit type in the broadcast area
- * The HQ uses the store function and all factories/beavers use the read function
+ * The HQ uses the store function and plans production from it (see Planner), and factories/beavers take their
+ * builds from the production queue the plan publishes
+ * The HQ counts the team from the heartbeat Registry rather than sensing every robot
+ * The census is packed 3 types to a channel, each as count << 1 | idle in 9 bits, behind a version word that is bumped
+ * whenever any of it changes. The HQ only writes the channels that changed. Builders add a unit they make to the channel
+ * as it is now rather than to their own (stale) copy, and bump the version so the HQ knows to read it all again
+ * The HQ also keeps a ledger of the last LEDGER_ROUNDS rounds of ore income, spending and bank in a ring from 50700 so
+ * miner and factory production can follow what we actually mine rather than a fixed guess. Anyone can average it over
+ * a window of rounds, and the HQ keeps running totals of the whole ring so it doesn't have to read it back
+ * Producers that are short of ore for what they want reserve it at that build's priority (see Reservations) and
+ * everyone leaves the ore reserved ahead of them alone, so the highest priority builds get the ore first
  */
 public class BuildStrategy {
+	private static final int censusVersionChannel = 50000;
+	private static final int censusBaseChannel = 50001;
+	private static final int TYPES_PER_CHANNEL = 3;
+	private static final int TYPE_BITS = 9;
+	private static final int MAX_COUNT = (1 << (TYPE_BITS - 1)) - 1;
+	private static final int CENSUS_CHANNELS = (RobotType.values().length + TYPES_PER_CHANNEL - 1) / TYPES_PER_CHANNEL;
+	private static final int requiredTowersChannel = 50030;
+	private static final int requiredMinersChannel = 50031;
+	private static final int oreSpentChannel = 50032;
+	private static final int ledgerRoundChannel = 50700; // The last round written to the ledger
+	private static final int ledgerBaseChannel = 50701; // 3 channels per round - income, spend and bank in tenths of ore
+	private static final int INCOME = 0; // Ledger columns
+	private static final int SPEND = 1;
+	private static final int BANK = 2;
+	public static final int LEDGER_ROUNDS = 32;
+	private static final int MAX_MINERS = 50;
+	private static int[] priorities; // Per robot type - who gets the ore first when we are short
+	private static RobotType[] types = RobotType.values();
+	private static final int TOWER = RobotType.TOWER.ordinal();
+	private static int[] upkeep; // Supply upkeep of each type by ordinal
+	private static RobotType[] producers; // The types that build or spawn what counts towards demand
+	private static double[] producerRate; // The ore per round each of them uses if always busy
+	
 	private RobotController rc;
-	private int[] unitCounts;
-	private boolean[] isIdle; //Set to true if a building of this type is not actively building
+	private Registry registry;
+	private Reservations reservations;
+	private Planner planner;
+	private boolean waiting; // We are saving up for something this turn so we mustn't spend on anything else
+	private int[] census; // The packed census channels as we last read or wrote them
+	private int[] counted; // HQ only - the census being built this turn
+	private int censusVersion = -1; // The version census holds
 	private int requiredTowers; // The number of supply towers we need to support the units
 	private int requiredMiners; // The number of miners we need to support all the factories and beavers we have
 	private int oreSpent; // The total ore spent this turn
-	private int maxRounds; // The turn on which the game will end
+	private double lastOre = -1; // HQ only - our ore at the start of our last turn
+	private int[][] ledger; // HQ only - our copy of each column of the ledger so we can keep running totals
+	private int[] ledgerTotal;
+	private int recorded; // Rounds we have written to the ledger
 	
-	public BuildStrategy(RobotController myrc) {
+	public BuildStrategy(RobotController myrc, Registry theRegistry) {
 		rc = myrc;
+		registry = theRegistry;
 		requiredTowers = 0;
 		requiredMiners = 0;
-		maxRounds = rc.getRoundLimit();
+		census = new int[CENSUS_CHANNELS];
+		reservations = new Reservations(rc);
+		planner = new Planner(rc, this);
+		if (priorities == null) {
+			priorities = new int[types.length];
+			for (RobotType t: types)
+				priorities[t.ordinal()] = 1;
+			priorities[RobotType.MINERFACTORY.ordinal()] = 6; // Nothing else pays for itself
+			priorities[RobotType.MINER.ordinal()] = 5;
+			priorities[RobotType.LAUNCHER.ordinal()] = 4;
+			priorities[RobotType.AEROSPACELAB.ordinal()] = 3;
+			priorities[RobotType.HELIPAD.ordinal()] = 3;
+			priorities[RobotType.DRONE.ordinal()] = 3;
+			priorities[RobotType.BEAVER.ordinal()] = 2;
+			priorities[RobotType.COMMANDER.ordinal()] = 2;
+			priorities[RobotType.HANDWASHSTATION.ordinal()] = 0;
+			upkeep = new int[types.length];
+			for (RobotType t: types)
+				upkeep[t.ordinal()] = t.supplyUpkeep;
+		}
 	}
 	
 	public void broadcast() {
-		RobotInfo[] myRobots = rc.senseNearbyRobots(Integer.MAX_VALUE, rc.getTeam());
+		registry.update();
+		int towers = rc.senseTowerLocations().length;
 		int supportCost = 0;
-		int factories = 0;
-		unitCounts = new int[22];
-		isIdle = new boolean[22];
-		
-		//Store the count of each robot type we have and if it is idle	
-		for (RobotInfo r : myRobots) {
-			unitCounts[r.type.ordinal()]++;
-			supportCost += r.type.supplyUpkeep;
-			if (r.type.canSpawn()) {
-				factories++;
-				if (r.coreDelay < 1)
-					isIdle[r.type.ordinal()] = true;
-			}
-		}
+		if (counted == null)
+			counted = new int[CENSUS_CHANNELS];
+		else
+			for (int i=0; i<CENSUS_CHANNELS; i++)
+				counted[i] = 0;
 		
 		try {
-			for (RobotType t: RobotType.values()) {
-				int i = t.ordinal();
-				int data = unitCounts[i] << 1;
-				if (isIdle[i])
-					data |= 1;
-				rc.broadcast(50000+i, data);
+			//If a builder has added a unit since we last wrote it won't be in the registry until its next turn so we keep
+			//its count this turn, and we can't trust our copy of the channels so we write them all
+			int version = rc.readBroadcast(censusVersionChannel);
+			if (version != censusVersion)
+				for (int c=0; c<CENSUS_CHANNELS; c++)
+					census[c] = rc.readBroadcast(censusBaseChannel + c);
+			
+			//Store the count of each robot type we have and if it is idle - the registry doesn't hold the HQ (we don't
+			//count ourselves) or towers. This runs every turn so we use the registry's tables rather than a call per type
+			boolean stale = (version != censusVersion);
+			int[] have = registry.counts();
+			boolean[] idle = registry.idleTypes();
+			for (int i=0; i<types.length; i++) {
+				int c = i / TYPES_PER_CHANNEL;
+				int shift = (i % TYPES_PER_CHANNEL) * TYPE_BITS;
+				int n = have[i];
+				if (i == TOWER)
+					n = towers;
+				else if (stale)
+					n = Math.max(n, (census[c] >>> (shift + 1)) & MAX_COUNT);
+				counted[c] |= ((n > MAX_COUNT ? MAX_COUNT : n) << (shift + 1)) | (idle[i] ? 1 << shift : 0);
+				supportCost += n * upkeep[i];
 			}
-			requiredTowers = 0;
+			
+			boolean changed = false;
+			for (int c=0; c<CENSUS_CHANNELS; c++) {
+				if (counted[c] != census[c] || version != censusVersion) {
+					rc.broadcast(censusBaseChannel + c, counted[c]);
+					census[c] = counted[c];
+					changed = true;
+				}
+			}
+			
+			int depots = 0;
 			if (supportCost > 200)
-				requiredTowers = (int)Math.ceil(Math.pow(supportCost/100-2, 1.0/GameConstants.SUPPLY_GEN_EXPONENT));
-			rc.broadcast(50030, requiredTowers);
+				depots = (int)Math.ceil(Math.pow(supportCost/100-2, 1.0/GameConstants.SUPPLY_GEN_EXPONENT));
+			if (depots != requiredTowers || version != censusVersion) {
+				requiredTowers = depots;
+				rc.broadcast(requiredTowersChannel, requiredTowers);
+				changed = true;
+			}
 			
+			oreSpent = rc.readBroadcast(oreSpentChannel);
+			rc.broadcast(oreSpentChannel, 0); // Zero the amount of ore spent this round - other bots add to this value
+			record();
+			
+			int miners;
 			if (Clock.getRoundNum() * 10 > rc.getRoundLimit() * 7) //70% of the way through the game we stop producing miners
-				requiredMiners = 5;
-			else
-				requiredMiners = (int)Math.ceil(factories * 8 / GameConstants.MINER_MINE_MAX); //Assume 2.5 income from miners and average usage from factories and beavers
-			rc.broadcast(50031, requiredMiners);
-			oreSpent = rc.readBroadcast(50032);
-			rc.broadcast(50032, 0); // Zero the amount of ore spent this round - other bots add to this value
+				miners = 5;
+			else //Enough miners at the yield we are measuring to keep the factories we have busy
+				miners = Math.min(MAX_MINERS, (int)Math.ceil((demand() - GameConstants.HQ_ORE_INCOME) / minerYield()));
+			if (miners != requiredMiners || version != censusVersion) {
+				requiredMiners = miners;
+				rc.broadcast(requiredMinersChannel, requiredMiners);
+				changed = true;
+			}
+			
+			if (changed) {
+				censusVersion = version + 1;
+				rc.broadcast(censusVersionChannel, censusVersion);
+			}
 		} catch (GameActionException e) {
 			e.printStackTrace();
 		}
 	}
 	
-	public void addUnit(RobotType t) {
-		int i = t.ordinal();
-		unitCounts[i]++; // We just built one of these
-		int data = unitCounts[i] << 1;
-		if (isIdle[i])
-			data |= 1;
+	/*
+	 * HQ only - write this round to the ledger
+	 * Our ore only changes by what we mine and what we spend, so what came in since our last turn is the difference
+	 * plus what the team spent
+	 */
+	private void record() throws GameActionException {
+		double ore = rc.getTeamOre();
+		int round = Clock.getRoundNum();
+		if (lastOre >= 0) {
+			if (ledger == null) {
+				ledger = new int[3][LEDGER_ROUNDS];
+				ledgerTotal = new int[3];
+			}
+			int i = round % LEDGER_ROUNDS;
+			write(INCOME, i, (int)Math.round((ore - lastOre + oreSpent) * 10));
+			write(SPEND, i, oreSpent * 10);
+			write(BANK, i, (int)Math.round(ore * 10));
+			rc.broadcast(ledgerRoundChannel, round);
+			recorded++;
+		}
+		lastOre = ore;
+	}
+	
+	private void write(int column, int i, int value) throws GameActionException {
+		rc.broadcast(ledgerBaseChannel + 3 * i + column, value);
+		ledgerTotal[column] += value - ledger[column][i];
+		ledger[column][i] = value;
+	}
+	
+	// The average of one column of the ledger over the last few rounds, in ore
+	private double average(int column, int rounds) {
+		if (ledger != null && rounds >= LEDGER_ROUNDS) // The HQ has the totals of the whole ledger
+			return ledgerTotal[column] / (Math.min(recorded, LEDGER_ROUNDS) * 10.0);
 		try {
-			rc.broadcast(50000+i, data);
-			oreSpent += t.oreCost;
-			rc.broadcast(50032, oreSpent);
+			int last = rc.readBroadcast(ledgerRoundChannel);
+			rounds = Math.min(Math.min(rounds, LEDGER_ROUNDS), last - 1); // Nothing is written for the first round
+			if (rounds <= 0)
+				return 0;
+			int total = 0;
+			for (int r=last-rounds+1; r<=last; r++)
+				total += rc.readBroadcast(ledgerBaseChannel + 3 * (r % LEDGER_ROUNDS) + column);
+			return total / (rounds * 10.0);
 		} catch (GameActionException e) {
-			System.out.println("Broadcast exception");
+			System.out.println("Ledger exception");
 			//e.printStackTrace();
 		}
+		return 0;
 	}
 	
-	private void getBroadcast() {
-		unitCounts = new int[22];
-		isIdle = new boolean[22];
-		
+	// Ore mined per round averaged over the last few rounds
+	public double income(int rounds) {
+		return average(INCOME, rounds);
+	}
+	
+	// Ore spent per round averaged over the last few rounds
+	public double spending(int rounds) {
+		return average(SPEND, rounds);
+	}
+	
+	// Ore in the bank averaged over the last few rounds
+	public double bank(int rounds) {
+		return average(BANK, rounds);
+	}
+	
+	/*
+	 * The ore per round the factories and beavers we have would use if they were always busy
+	 * Each only makes one thing at a time so it counts at the rate of the dearest thing it makes. Miners are what we
+	 * are working out how many of, so the miner factories don't count
+	 */
+	private double demand() {
+		if (producers == null) { // Work out the rates once
+			double[] rate = new double[types.length]; // Per producer type
+			int n = 0;
+			for (RobotType t: types) {
+				RobotType source = t.isBuilding ? RobotType.BEAVER : t.spawnSource;
+				if (source == null || source == RobotType.HQ || t.buildTurns == 0 || t == RobotType.MISSILE ||
+						t == RobotType.MINER)
+					continue;
+				int f = source.ordinal();
+				if (rate[f] == 0)
+					n++;
+				rate[f] = Math.max(rate[f], t.oreCost / (double)t.buildTurns);
+			}
+			RobotType[] found = new RobotType[n];
+			producerRate = new double[n];
+			n = 0;
+			for (RobotType f: types) {
+				if (rate[f.ordinal()] > 0) {
+					found[n] = f;
+					producerRate[n++] = rate[f.ordinal()];
+				}
+			}
+			producers = found;
+		}
+		double total = 0;
+		for (int i=0; i<producers.length; i++)
+			total += units(producers[i]) * producerRate[i];
+		return total;
+	}
+	
+	/*
+	 * What each miner (or beaver) has been bringing in each round
+	 * Until we have some we assume they mine a full load every MINER_MINE_RATE rounds, which is also the least we
+	 * expect so new miners still walking to their ore don't make us ask for ever more
+	 */
+	private double minerYield() {
+		double least = GameConstants.MINER_MINE_MAX / GameConstants.MINER_MINE_RATE;
+		int workers = units(RobotType.MINER) + units(RobotType.BEAVER);
+		if (units(RobotType.MINER) == 0)
+			return least;
+		return Math.max((income(LEDGER_ROUNDS) - GameConstants.HQ_ORE_INCOME) / workers, least);
+	}
+	
+	// Count a robot we have just built at this location and register it so the HQ keeps counting it
+	public void addUnit(RobotType t, MapLocation at) {
+		int i = t.ordinal();
+		int shift = (i % TYPES_PER_CHANNEL) * TYPE_BITS;
+		int c = i / TYPES_PER_CHANNEL;
 		try {
-			for (RobotType t: RobotType.values()) {
-				int i = t.ordinal();
-				int data = rc.readBroadcast(50000+i);
-				isIdle[i] = ((data & 1) != 0)?true:false;
-				unitCounts[i] = data >> 1;
+			// We just built one of these
+			census[c] = rc.readBroadcast(censusBaseChannel + c);
+			if (((census[c] >>> (shift + 1)) & MAX_COUNT) < MAX_COUNT) {
+				census[c] += 2 << shift;
+				rc.broadcast(censusBaseChannel + c, census[c]);
+				censusVersion = rc.readBroadcast(censusVersionChannel) + 1;
+				rc.broadcast(censusVersionChannel, censusVersion);
 			}
-			requiredTowers = rc.readBroadcast(50030);
-			requiredMiners = rc.readBroadcast(50031);
-			oreSpent = rc.readBroadcast(50032);
+			registry.built(at);
+			reservations.release();
+			planner.built();
+			oreSpent = rc.readBroadcast(oreSpentChannel) + t.oreCost;
+			rc.broadcast(oreSpentChannel, oreSpent);
 		} catch (GameActionException e) {
 			System.out.println("Broadcast exception");
 			//e.printStackTrace();
@@ -102,99 +299,62 @@ public class BuildStrategy {
 	}
 	
 	public int units(RobotType type) {
-		return unitCounts[type.ordinal()];
+		int i = type.ordinal();
+		return (census[i / TYPES_PER_CHANNEL] >>> ((i % TYPES_PER_CHANNEL) * TYPE_BITS + 1)) & MAX_COUNT;
 	}
 	
-	private boolean idle(RobotType type) {
-		return isIdle[type.ordinal()];
+	public boolean idle(RobotType type) {
+		int i = type.ordinal();
+		return ((census[i / TYPES_PER_CHANNEL] >>> ((i % TYPES_PER_CHANNEL) * TYPE_BITS)) & 1) != 0;
 	}
 	
 	public int oreSpent() {
 		return this.oreSpent;
 	}
 	
+	public int requiredMiners() {
+		return requiredMiners;
+	}
+	
+	public int requiredTowers() {
+		return requiredTowers;
+	}
+	
+	public int priority(RobotType type) {
+		return priorities[type.ordinal()];
+	}
+	
+	/*
+	 * True if we can build this now without spending ore other producers have reserved ahead of us
+	 * If we can't afford it we reserve the ore for it and don't build anything else this turn
+	 */
+	private boolean canBuild(RobotType t) {
+		if (waiting)
+			return false;
+		if (t.isBuilding && t.dependency != null && rc.checkDependencyProgress(t.dependency) != DependencyProgress.DONE)
+			return false; // Saving up won't help until what it needs is finished
+		boolean ready = rc.getType() == RobotType.BEAVER ? rc.hasBuildRequirements(t) : rc.hasSpawnRequirements(t);
+		if (!ready && rc.getTeamOre() >= t.oreCost) // Something other than ore is missing so there is nothing to save for
+			return false;
+		int priority = priorities[t.ordinal()];
+		if (ready && rc.getTeamOre() - reservations.heldAbove(priority) >= t.oreCost)
+			return true;
+		reservations.reserve(priority, t.oreCost);
+		waiting = true;
+		return false;
+	}
+	
+	// HQ only - plan production from the census we have just written
+	public void plan(int stopWhen) {
+		planner.plan(stopWhen);
+	}
+	
 	// returns the type of unit we should build this turn or null if there is nothing to do
-	public RobotType getBuildOrder() {		
-		int turn = Clock.getRoundNum();
-		getBroadcast();
-
-		switch (rc.getType()) {
-		case BEAVER:
-			if (units(RobotType.MINERFACTORY) == 0 && !rc.hasBuildRequirements(RobotType.MINERFACTORY))
-				return null; // Save up until we can afford a mine factory
-			/*
-			 * We only build a factory if all factories of this type are already busy building, i.e. not idle
-			 * This means production is dependent on both need and resources
-			 */
-			if (rc.hasBuildRequirements(RobotType.MINERFACTORY) && !idle(RobotType.MINERFACTORY) && turn+RobotType.MINERFACTORY.buildTurns < maxRounds &&
-					units(RobotType.MINERFACTORY) < 1)
-				return RobotType.MINERFACTORY;
-			else if (rc.hasBuildRequirements(RobotType.HELIPAD) && !idle(RobotType.HELIPAD) && turn+RobotType.HELIPAD.buildTurns < maxRounds &&
-					units(RobotType.HELIPAD) == 0)
-				return RobotType.HELIPAD;
-			else if (rc.hasBuildRequirements(RobotType.AEROSPACELAB) && !idle(RobotType.AEROSPACELAB) && turn+RobotType.AEROSPACELAB.buildTurns < maxRounds)
-				return RobotType.AEROSPACELAB;
-			/*
-			else if (rc.hasBuildRequirements(RobotType.BARRACKS) && !idle(RobotType.BARRACKS) && turn+RobotType.BARRACKS.buildTurns < maxRounds)
-				return RobotType.BARRACKS;
-			else if (rc.hasBuildRequirements(RobotType.TANKFACTORY) && !idle(RobotType.TANKFACTORY) && turn+RobotType.TANKFACTORY.buildTurns < maxRounds)
-				return RobotType.TANKFACTORY;
-			*/
-			else if (rc.hasBuildRequirements(RobotType.TECHNOLOGYINSTITUTE) && turn+RobotType.TECHNOLOGYINSTITUTE.buildTurns < maxRounds &&
-					units(RobotType.TECHNOLOGYINSTITUTE) == 0 && units(RobotType.AEROSPACELAB) > 0)
-				return RobotType.TECHNOLOGYINSTITUTE;
-			else if (rc.hasBuildRequirements(RobotType.TRAININGFIELD) && turn+RobotType.TRAININGFIELD.buildTurns < maxRounds &&
-					units(RobotType.TRAININGFIELD) == 0)
-				return RobotType.TRAININGFIELD;
-			else if (maxRounds - turn < 200 && rc.hasBuildRequirements(RobotType.HANDWASHSTATION))// && turn+RobotType.HANDWASHSTATION.buildTurns < maxRounds)
-				return RobotType.HANDWASHSTATION;
-			else if (rc.hasBuildRequirements(RobotType.SUPPLYDEPOT) && turn+RobotType.SUPPLYDEPOT.buildTurns < maxRounds &&
-					units(RobotType.SUPPLYDEPOT) < Math.min(36, requiredTowers))
-				return RobotType.SUPPLYDEPOT;
-			break;
-		case MINERFACTORY:
-			if (rc.hasSpawnRequirements(RobotType.MINER) && turn+RobotType.MINER.buildTurns < maxRounds &&
-					units(RobotType.MINER) < requiredMiners) //Math.min(units(RobotType.LAUNCHER)+20, requiredMiners))
-				return RobotType.MINER;
-			break;
-		case TECHNOLOGYINSTITUTE:
-			if (rc.hasSpawnRequirements(RobotType.COMPUTER) && turn+RobotType.COMPUTER.buildTurns < maxRounds &&
-					turn > 600 && units(RobotType.COMPUTER) < 1)
-				return RobotType.COMPUTER;
-			break;
-		case BARRACKS:
-			if (rc.hasSpawnRequirements(RobotType.SOLDIER) && turn+RobotType.SOLDIER.buildTurns < maxRounds &&
-					units(RobotType.SOLDIER) + units(RobotType.TANK) < 20)
-				return RobotType.SOLDIER;
-			break;
-		case HELIPAD:
-			if (rc.hasSpawnRequirements(RobotType.DRONE) && turn+RobotType.DRONE.buildTurns < maxRounds &&
-					units(RobotType.DRONE) < 1+turn/850)
-				return RobotType.DRONE;
-			break;
-		case TANKFACTORY:
-			if (rc.hasSpawnRequirements(RobotType.TANK) && turn+RobotType.TANK.buildTurns < maxRounds &&
-					units(RobotType.TANK) + units(RobotType.LAUNCHER) < 30)
-				return RobotType.TANK;
-			break;
-		case TRAININGFIELD:
-			if (rc.hasSpawnRequirements(RobotType.COMMANDER) && turn+RobotType.COMMANDER.buildTurns < maxRounds &&
-					units(RobotType.COMMANDER) == 0)
-				return RobotType.COMMANDER;
-			break;
-		case AEROSPACELAB:
-			if (rc.hasSpawnRequirements(RobotType.LAUNCHER) && turn+RobotType.LAUNCHER.buildTurns < maxRounds)
-				return RobotType.LAUNCHER;
-			break;
-		case HQ: //We need more beavers to build factories if we have spare ore
-			if (rc.hasSpawnRequirements(RobotType.BEAVER) && turn+RobotType.BEAVER.buildTurns < maxRounds &&
-					units(RobotType.BEAVER) < (turn+300)/200)
-				return RobotType.BEAVER;
-			break;
-		default:
-			break;
-		}
-		
+	public RobotType getBuildOrder() {
+		waiting = false;
+		RobotType build = planner.next();
+		if (build != null && canBuild(build))
+			return build;
 		return null;
 	}
 }
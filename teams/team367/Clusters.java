@@ -0,0 +1,597 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * This class builds a coarse graph of the map so units far from the destination have a route long before the
+ * Bfs pages reach them.
+ * The (cropped) map is split into 8x8 clusters. Where two clusters meet we pick one crossing (the middle of the
+ * longest stretch of border we can walk over) and for each cluster we store which tiles we can walk on and how many
+ * moves it takes to get between its crossings.
+ * The cost from each crossing to the destination is then found by relaxing the clusters in turn until nothing changes.
+ * Everything is stored in the broadcast space from 46000 and, like the Bfs search, any robot with spare bytecodes can
+ * take a slice of the work.
+ */
+public class Clusters {
+	private static final int CLUSTER_SIZE = 8;
+	private static final int CLUSTERS_WIDE = GameConstants.MAP_MAX_WIDTH / CLUSTER_SIZE;
+	private static final int CLUSTERS_HIGH = GameConstants.MAP_MAX_HEIGHT / CLUSTER_SIZE;
+	private static final int NUM_CLUSTERS = CLUSTERS_WIDE * CLUSTERS_HIGH;
+	private static final int LARGE_MAP = 50; //Maps this wide or high (as far as we know) are worth building the clusters for
+	private static final int LOCK_TIMEOUT = 5;
+	private static final int LOAD_COST = 300; //Bytecodes to take the lock and read the header
+	private static final int SAVE_COST = 400; //Bytecodes to write the header back and release the lock
+	private static final int MAX_STEP = 3500; //Bytecodes for the most expensive step (finishing a cluster)
+	private static final int READ_STEP = 1800; //Bytecodes for the other steps (reading up to 5 tiles)
+	private static final int HALF = CLUSTER_SIZE / 2;
+	private static final int FINISH = 1 + 2 * CLUSTER_SIZE + 4; //The step where we work out the crossings
+	private static final int CLEAR_CHANNELS = 25; //Costs zeroed in each clearing step
+
+	// Phases of the work
+	private static final int P_NONE = 0;
+	private static final int P_BUILDING = 1; //Reading the terrain of each cluster that might have changed
+	private static final int P_CLEARING = 2; //Zeroing the crossing costs and adding the ones next to the sources
+	private static final int P_SOLVING = 3; //Relaxing the clusters until the costs stop changing
+
+	// Sides of a cluster - the crossing to the west is the east crossing of the cluster to the west and so on
+	private static final int WEST = 0;
+	private static final int NORTH = 1;
+	private static final int EAST = 2;
+	private static final int SOUTH = 3;
+	private static Direction[] sideDirs = new Direction[] { Direction.WEST, Direction.NORTH, Direction.EAST, Direction.SOUTH };
+
+	// Broadcast layout
+	private static final int clusterBaseChannel = 46000;
+	private static final int C_LOCK = clusterBaseChannel; // Round+1 a robot started a slice, 0 when no one is part way through
+	private static final int C_PHASE = clusterBaseChannel + 1;
+	private static final int C_NEXT = clusterBaseChannel + 2; // The cluster we are working on (or the next cost to clear)
+	private static final int C_STEP = clusterBaseChannel + 3; // How far through building the cluster we are
+	private static final int C_FLAGS = clusterBaseChannel + 4; // Graph built, something changed this sweep, the cluster has unknown tiles
+	private static final int C_MASK_LO = clusterBaseChannel + 5; // Walkable tiles of the cluster we are building (rows 0-3)
+	private static final int C_MASK_HI = clusterBaseChannel + 6; // rows 4-7
+	private static final int C_BORDER = clusterBaseChannel + 7; // Walkable tiles next to it - ssssssss eeeeeeee nnnnnnnn wwwwwwww
+	private static final int C_DEST = clusterBaseChannel + 8; // The dest the costs are for - ssssxxxxxxxyyyyyyy (s = number of sources)
+	private static final int C_ROUTE = clusterBaseChannel + 9; // Cropped dest + 1 when the costs are complete, 0 otherwise
+	private static final int recordBaseChannel = clusterBaseChannel + 16; // RECORD_SIZE channels for each cluster
+	private static final int RECORD_SIZE = 4; // mask lo, mask hi, doors, distances
+	private static final int costBaseChannel = recordBaseChannel + NUM_CLUSTERS * RECORD_SIZE; // Moves + 1 from the east crossing then the south crossing of each cluster
+
+	// Doors channel: 4 bits for each side (bit 3 set if there is a crossing, bits 0-2 the row or column) then the flags
+	private static final int BUILT = 1 << 16;
+	private static final int HAS_UNKNOWN = 1 << 17;
+	// Distances channel: 5 bits for each pair of sides, the pairs in the order given by PAIR
+	private static final int UNREACHABLE = 31;
+	private static final int NO_DISTANCES = (1 << 30) - 1;
+	private static final int[][] PAIR = new int[][] { { -1, 0, 1, 2 }, { 0, -1, 3, 4 }, { 1, 3, -1, 5 }, { 2, 4, 5, -1 } };
+
+	// Masks of the bits not in the west or east column of a cluster
+	private static final long NOT_WEST = 0xfefefefefefefefeL;
+	private static final long NOT_EAST = 0x7f7f7f7f7f7f7f7fL;
+
+	private static RobotController rc;
+	private static MapInfo map;
+
+	// Our copy of the header
+	private static int phase;
+	private static int next;
+	private static int step;
+	private static boolean graphBuilt;
+	private static boolean changed;
+	private static boolean unknown;
+	private static int maskLo;
+	private static int maskHi;
+	private static int border;
+	private static int dest;
+	private static int route;
+	private static int[] loaded = new int[C_ROUTE - C_PHASE + 1];
+
+	public Clusters(RobotController theRC) {
+		rc = theRC;
+	}
+
+	// Only worth the bytecodes if the page for the destination would take a long time to reach the far side
+	public static boolean largeMap(MapInfo m) {
+		return m.maxX - m.minX >= LARGE_MAP || m.maxY - m.minY >= LARGE_MAP;
+	}
+
+	// Returns true if the crossing costs are complete for this destination
+	public boolean isSolved(MapLocation d) throws GameActionException {
+		return rc.readBroadcast(C_ROUTE) == cropPacked(d) + 1;
+	}
+
+	// Take a slice of the work of building the graph and solving it for dest
+	// Returns false if we couldn't take a slice (someone else has the lock or we don't have the bytecodes) so the caller
+	// can spend them on something else - isSolved says when the costs are complete
+	public boolean work(MapLocation d, MapInfo theMap, int stopWhen) {
+		try {
+			map = theMap;
+			if (!lock(stopWhen))
+				return false;
+
+			int[] sources = getSources(d);
+			int want = cropPacked(d) | (sources.length << 14);
+			if (want != dest) {
+				dest = want;
+				if (graphBuilt)
+					startClearing();
+			}
+
+			while (Clock.getBytecodesLeft() > stopWhen + ((phase == P_BUILDING && step == FINISH) ? MAX_STEP : READ_STEP) + SAVE_COST) {
+				switch (phase) {
+				case P_NONE:
+					phase = P_BUILDING;
+					next = 0;
+					step = 0;
+					continue;
+				case P_BUILDING:
+					buildStep();
+					continue;
+				case P_CLEARING:
+					clearStep(sources);
+					continue;
+				case P_SOLVING:
+					solveStep();
+					continue;
+				}
+			}
+
+			unlock();
+			return true;
+		} catch (GameActionException e) {
+			System.out.println("Clusters exception");
+			//e.printStackTrace();
+		}
+		return false;
+	}
+
+	private boolean lock(int stopWhen) throws GameActionException {
+		if (Clock.getBytecodesLeft() < stopWhen + LOAD_COST + MAX_STEP + SAVE_COST)
+			return false;
+		int now = Clock.getRoundNum();
+		int lock = rc.readBroadcast(C_LOCK);
+		if (lock != 0 && now + 1 - lock <= LOCK_TIMEOUT)
+			return false;
+		rc.broadcast(C_LOCK, now + 1);
+
+		for (int i = loaded.length; i-- > 0;)
+			loaded[i] = rc.readBroadcast(C_PHASE + i);
+		phase = loaded[0];
+		next = loaded[C_NEXT - C_PHASE];
+		step = loaded[C_STEP - C_PHASE];
+		int flags = loaded[C_FLAGS - C_PHASE];
+		graphBuilt = (flags & 1) != 0;
+		changed = (flags & 2) != 0;
+		unknown = (flags & 4) != 0;
+		maskLo = loaded[C_MASK_LO - C_PHASE];
+		maskHi = loaded[C_MASK_HI - C_PHASE];
+		border = loaded[C_BORDER - C_PHASE];
+		dest = loaded[C_DEST - C_PHASE];
+		route = loaded[C_ROUTE - C_PHASE];
+
+		if (lock != 0) { // The last robot died part way through a slice
+			if (phase == P_BUILDING)
+				step = 0;
+			else if (phase != P_NONE)
+				startClearing();
+		}
+		return true;
+	}
+
+	private void unlock() throws GameActionException {
+		int[] data = new int[loaded.length];
+		data[0] = phase;
+		data[C_NEXT - C_PHASE] = next;
+		data[C_STEP - C_PHASE] = step;
+		data[C_FLAGS - C_PHASE] = (graphBuilt ? 1 : 0) | (changed ? 2 : 0) | (unknown ? 4 : 0);
+		data[C_MASK_LO - C_PHASE] = maskLo;
+		data[C_MASK_HI - C_PHASE] = maskHi;
+		data[C_BORDER - C_PHASE] = border;
+		data[C_DEST - C_PHASE] = dest;
+		data[C_ROUTE - C_PHASE] = route;
+		for (int i = data.length; i-- > 0;) {
+			if (data[i] != loaded[i])
+				rc.broadcast(C_PHASE + i, data[i]);
+		}
+		rc.broadcast(C_LOCK, 0);
+	}
+
+	// The cropped tiles the costs are measured from - like the Bfs the enemy HQ means all the enemy towers as well
+	private int[] getSources(MapLocation d) {
+		if (d.equals(rc.senseEnemyHQLocation())) {
+			MapLocation[] towers = rc.senseEnemyTowerLocations();
+			int[] result = new int[towers.length+1];
+			result[0] = cropPacked(d);
+			for (int i=0; i<towers.length; i++)
+				result[i+1] = cropPacked(towers[i]);
+			return result;
+		}
+		return new int[] { cropPacked(d) };
+	}
+
+	// Building a cluster takes 22 steps so they fit in the bytecodes the HQ has spare: a quick look to see if it
+	// is worth reading, one for each half row (with the tile beside it), four for the rows above and below,
+	// then we work out the crossings and the distances between them
+	private void buildStep() throws GameActionException {
+		if (next == NUM_CLUSTERS) { // End of a sweep
+			next = 0;
+			if (!graphBuilt || changed || route == 0) {
+				graphBuilt = true;
+				startClearing();
+			}
+			return;
+		}
+
+		int x0 = (next / CLUSTERS_HIGH) * CLUSTER_SIZE;
+		int y0 = (next % CLUSTERS_HIGH) * CLUSTER_SIZE;
+		if (step == 0) {
+			// Only clusters with tiles we couldn't sense last time need to be built again
+			int doors = rc.readBroadcast(recordBaseChannel + next * RECORD_SIZE + 2);
+			if ((doors & BUILT) != 0 && (doors & HAS_UNKNOWN) == 0) {
+				next++;
+				return;
+			}
+			// Reading every tile is expensive so we look at the corners and the middle first
+			// If they are all off the map there is nothing here, and if we haven't seen most of them we try again next sweep
+			// (keeping what we had) as unknown tiles are the most expensive to read
+			int offMap = 0;
+			int unknowns = 0;
+			for (int i = 5; i-- > 0;) {
+				TerrainTile t = (i == 4) ? map.tile(x0 + CLUSTER_SIZE / 2, y0 + CLUSTER_SIZE / 2) :
+					map.tile(x0 + (i & 1) * (CLUSTER_SIZE - 1), y0 + (i >> 1) * (CLUSTER_SIZE - 1));
+				if (t == TerrainTile.OFF_MAP)
+					offMap++;
+				else if (t == TerrainTile.UNKNOWN)
+					unknowns++;
+			}
+			if (offMap >= 4) {
+				writeRecord(0, 0, BUILT, NO_DISTANCES);
+				next++;
+				return;
+			}
+			if (unknowns >= 3) {
+				if ((doors & BUILT) == 0)
+					writeRecord(0, 0, BUILT | HAS_UNKNOWN, NO_DISTANCES);
+				next++;
+				return;
+			}
+			maskLo = 0;
+			maskHi = 0;
+			border = 0;
+			unknown = false;
+		} else if (step <= 2 * CLUSTER_SIZE) {
+			int row = (step - 1) >> 1;
+			int half = (step - 1) & 1;
+			int y = y0 + row;
+			int bits = 0;
+			for (int i = HALF; i-- > 0;) {
+				if (walkable(x0 + half * HALF + i, y))
+					bits |= 1 << (half * HALF + i);
+			}
+			if (row < 4)
+				maskLo |= bits << (row * CLUSTER_SIZE);
+			else
+				maskHi |= bits << ((row - 4) * CLUSTER_SIZE);
+			if (half == 0) {
+				if (walkable((x0 + GameConstants.MAP_MAX_WIDTH - 1) % GameConstants.MAP_MAX_WIDTH, y))
+					border |= 1 << row;
+			} else {
+				if (walkable((x0 + CLUSTER_SIZE) % GameConstants.MAP_MAX_WIDTH, y))
+					border |= 1 << (16 + row);
+			}
+		} else if (step < FINISH) {
+			int south = (step - 2 * CLUSTER_SIZE - 1) >> 1;
+			int half = (step - 2 * CLUSTER_SIZE - 1) & 1;
+			int y = (south == 0) ? (y0 + GameConstants.MAP_MAX_HEIGHT - 1) % GameConstants.MAP_MAX_HEIGHT : (y0 + CLUSTER_SIZE) % GameConstants.MAP_MAX_HEIGHT;
+			int shift = (south == 0) ? 8 : 24;
+			for (int i = HALF; i-- > 0;) {
+				if (walkable(x0 + half * HALF + i, y))
+					border |= 1 << (shift + half * HALF + i);
+			}
+		} else {
+			finishCluster();
+			step = 0;
+			next++;
+			return;
+		}
+		step++;
+	}
+
+	// Unknown tiles count as walls until we can sense them, like the Bfs
+	private boolean walkable(int x, int y) {
+		TerrainTile t = map.tile(x, y);
+		if (t == TerrainTile.UNKNOWN)
+			unknown = true;
+		return t == TerrainTile.NORMAL;
+	}
+
+	private void finishCluster() throws GameActionException {
+		long mask = ((long) maskHi << 32) | (maskLo & 0xffffffffL);
+		int[] pos = new int[4]; // Where we can cross each side (a row for west and east, a column for north and south)
+		pos[WEST] = doorPosition(column(mask, 0) & border & 0xff);
+		pos[NORTH] = doorPosition((int) (mask & 0xff) & (border >> 8) & 0xff);
+		pos[EAST] = doorPosition(column(mask, CLUSTER_SIZE - 1) & (border >> 16) & 0xff);
+		pos[SOUTH] = doorPosition((int) (mask >>> 56) & (border >>> 24));
+
+		int doors = BUILT | (unknown ? HAS_UNKNOWN : 0);
+		for (int s = 0; s < 4; s++) {
+			if (pos[s] >= 0)
+				doors |= (8 | pos[s]) << (4 * s);
+		}
+		int[] door = doorTiles(doors);
+
+		int dists = NO_DISTANCES;
+		for (int i = 0; i < 3; i++) {
+			if (door[i] < 0)
+				continue;
+			int[] moves = movesFrom(mask, door[i], door);
+			for (int j = i + 1; j < 4; j++) {
+				if (door[j] >= 0 && moves[j] < UNREACHABLE) {
+					int shift = 5 * PAIR[i][j];
+					dists = (dists & ~(UNREACHABLE << shift)) | (moves[j] << shift);
+				}
+			}
+		}
+
+		int channel = recordBaseChannel + next * RECORD_SIZE;
+		if (rc.readBroadcast(channel + 2) != doors || rc.readBroadcast(channel + 3) != dists)
+			changed = true;
+		writeRecord(maskLo, maskHi, doors, dists);
+	}
+
+	private void writeRecord(int lo, int hi, int doors, int dists) throws GameActionException {
+		int channel = recordBaseChannel + next * RECORD_SIZE;
+		rc.broadcast(channel, lo);
+		rc.broadcast(channel + 1, hi);
+		rc.broadcast(channel + 2, doors);
+		rc.broadcast(channel + 3, dists);
+	}
+
+	// The walkable tiles in column x of the cluster, one bit per row
+	private static int column(long mask, int x) {
+		int bits = 0;
+		for (int y = CLUSTER_SIZE; y-- > 0;) {
+			if ((mask & (1L << (y * CLUSTER_SIZE + x))) != 0)
+				bits |= 1 << y;
+		}
+		return bits;
+	}
+
+	// The middle of the longest run of set bits (-1 if there are none)
+	private static int doorPosition(int bits) {
+		int best = -1;
+		int bestLength = 0;
+		int start = 0;
+		int length = 0;
+		for (int i = 0; i <= CLUSTER_SIZE; i++) {
+			if (i < CLUSTER_SIZE && (bits & (1 << i)) != 0) {
+				if (length++ == 0)
+					start = i;
+			} else {
+				if (length > bestLength) {
+					bestLength = length;
+					best = start + (length - 1) / 2;
+				}
+				length = 0;
+			}
+		}
+		return best;
+	}
+
+	// Moves from the start tile to each of the door tiles walking only on the tiles in mask (UNREACHABLE if we can't get there)
+	// Each time round the loop we grow the set of tiles we have reached by one move in every direction
+	private static int[] movesFrom(long mask, int start, int[] door) {
+		int[] moves = new int[] { UNREACHABLE, UNREACHABLE, UNREACHABLE, UNREACHABLE };
+		long reached = 1L << start;
+		int found = 0;
+		int wanted = 0;
+		for (int s = 0; s < 4; s++) {
+			if (door[s] >= 0)
+				wanted++;
+		}
+		for (int m = 0; m < UNREACHABLE; m++) {
+			for (int s = 0; s < 4; s++) {
+				if (door[s] >= 0 && moves[s] == UNREACHABLE && (reached & (1L << door[s])) != 0) {
+					moves[s] = m;
+					found++;
+				}
+			}
+			if (found == wanted)
+				break;
+			long grown = reached | ((reached << 1) & NOT_WEST) | ((reached >>> 1) & NOT_EAST);
+			grown = (grown | (grown << CLUSTER_SIZE) | (grown >>> CLUSTER_SIZE)) & mask;
+			if (grown == reached)
+				break;
+			reached = grown;
+		}
+		return moves;
+	}
+
+	private void startClearing() {
+		phase = P_CLEARING;
+		next = 0;
+		route = 0;
+	}
+
+	// Zero the costs a few at a time then add the crossings of the clusters the sources are in (one source a step)
+	private void clearStep(int[] sources) throws GameActionException {
+		int total = NUM_CLUSTERS * 2;
+		if (next < total) {
+			int channel = costBaseChannel + next;
+			for (int i = Math.min(CLEAR_CHANNELS, total - next); i-- > 0;)
+				rc.broadcast(channel++, 0);
+			next = channel - costBaseChannel;
+			return;
+		}
+
+		if (next - total < sources.length) {
+			int x = sources[next - total] >> 7;
+			int y = sources[next - total] & 0x7f;
+			int c = (x / CLUSTER_SIZE) * CLUSTERS_HIGH + y / CLUSTER_SIZE;
+			int channel = recordBaseChannel + c * RECORD_SIZE;
+			long mask = ((long) rc.readBroadcast(channel + 1) << 32) | (rc.readBroadcast(channel) & 0xffffffffL);
+			int doors = rc.readBroadcast(channel + 2);
+			int[] door = doorTiles(doors);
+			int[] moves = movesFrom(mask, (y % CLUSTER_SIZE) * CLUSTER_SIZE + x % CLUSTER_SIZE, door);
+			for (int s = 0; s < 4; s++) {
+				if (moves[s] < UNREACHABLE) {
+					int costChannel = sideChannel(c, s);
+					int cost = rc.readBroadcast(costChannel);
+					if (cost == 0 || moves[s] + 1 < cost)
+						rc.broadcast(costChannel, moves[s] + 1);
+				}
+			}
+			next++;
+			return;
+		}
+		phase = P_SOLVING;
+		next = 0;
+		changed = false;
+	}
+
+	// The bit in the cluster mask of the tile on each side we cross from, -1 if there is no crossing
+	private static int[] doorTiles(int doors) {
+		int[] door = new int[4];
+		for (int s = 0; s < 4; s++) {
+			int d = (doors >> (4 * s)) & 0xf;
+			if ((d & 8) == 0) {
+				door[s] = -1;
+				continue;
+			}
+			int pos = d & 7;
+			switch (s) {
+			case WEST:
+				door[s] = pos * CLUSTER_SIZE;
+				break;
+			case NORTH:
+				door[s] = pos;
+				break;
+			case EAST:
+				door[s] = pos * CLUSTER_SIZE + CLUSTER_SIZE - 1;
+				break;
+			default:
+				door[s] = CLUSTER_SIZE * (CLUSTER_SIZE - 1) + pos;
+			}
+		}
+		return door;
+	}
+
+	// Each crossing is stored with the cluster to the west or north of it
+	private static int sideChannel(int c, int side) {
+		int cx = c / CLUSTERS_HIGH;
+		int cy = c % CLUSTERS_HIGH;
+		switch (side) {
+		case WEST:
+			return costBaseChannel + 2 * (((cx + CLUSTERS_WIDE - 1) % CLUSTERS_WIDE) * CLUSTERS_HIGH + cy);
+		case NORTH:
+			return costBaseChannel + 2 * (cx * CLUSTERS_HIGH + (cy + CLUSTERS_HIGH - 1) % CLUSTERS_HIGH) + 1;
+		case EAST:
+			return costBaseChannel + 2 * c;
+		default:
+			return costBaseChannel + 2 * c + 1;
+		}
+	}
+
+	// Give each crossing of the next cluster the cheapest cost we can get through the cluster from the others
+	// We keep sweeping over the clusters until a sweep changes nothing
+	private void solveStep() throws GameActionException {
+		if (next == NUM_CLUSTERS) {
+			next = 0;
+			if (changed) {
+				changed = false;
+			} else {
+				route = (dest & 0x3fff) + 1;
+				phase = P_BUILDING;
+				step = 0;
+			}
+			return;
+		}
+
+		int channel = recordBaseChannel + next * RECORD_SIZE;
+		int doors = rc.readBroadcast(channel + 2) & 0xffff;
+		if ((doors & 0x8888) == 0) {
+			next++;
+			return;
+		}
+		int dists = rc.readBroadcast(channel + 3);
+		int[] costChannel = new int[4];
+		int[] cost = new int[4];
+		for (int s = 0; s < 4; s++) {
+			if ((doors & (8 << (4 * s))) != 0) {
+				costChannel[s] = sideChannel(next, s);
+				cost[s] = rc.readBroadcast(costChannel[s]);
+			}
+		}
+		for (int i = 0; i < 4; i++) {
+			if (cost[i] == 0)
+				continue;
+			for (int j = 0; j < 4; j++) {
+				if (j == i || costChannel[j] == 0)
+					continue;
+				int d = (dists >> (5 * PAIR[i][j])) & UNREACHABLE;
+				if (d == UNREACHABLE)
+					continue;
+				int newCost = cost[i] + d + 1;
+				if (cost[j] == 0 || newCost < cost[j]) {
+					cost[j] = newCost;
+					rc.broadcast(costChannel[j], newCost);
+					changed = true;
+				}
+			}
+		}
+		next++;
+	}
+
+	// Units call this when the Bfs page has no result for them yet
+	// We head for the crossing of our cluster with the lowest cost counting the moves to get to it
+	// Returns null if the costs aren't ready or we are in the same cluster as the destination
+	public Direction route(MapLocation here, MapLocation d) {
+		try {
+			int key = cropPacked(d);
+			if (rc.readBroadcast(C_ROUTE) != key + 1)
+				return null;
+			int x = crop(here.x, GameConstants.MAP_MAX_WIDTH);
+			int y = crop(here.y, GameConstants.MAP_MAX_HEIGHT);
+			int cx = x / CLUSTER_SIZE;
+			int cy = y / CLUSTER_SIZE;
+			if ((key >> 7) / CLUSTER_SIZE == cx && (key & 0x7f) / CLUSTER_SIZE == cy)
+				return null;
+			int c = cx * CLUSTERS_HIGH + cy;
+			int[] door = doorTiles(rc.readBroadcast(recordBaseChannel + c * RECORD_SIZE + 2));
+			int lx = x % CLUSTER_SIZE;
+			int ly = y % CLUSTER_SIZE;
+			int best = -1;
+			int bestCost = 0;
+			for (int s = 0; s < 4; s++) {
+				if (door[s] < 0)
+					continue;
+				int cost = rc.readBroadcast(sideChannel(c, s));
+				if (cost == 0)
+					continue;
+				cost += Math.max(Math.abs(door[s] % CLUSTER_SIZE - lx), Math.abs(door[s] / CLUSTER_SIZE - ly));
+				if (best < 0 || cost < bestCost) {
+					best = s;
+					bestCost = cost;
+				}
+			}
+			if (best < 0)
+				return null;
+			int dx = door[best] % CLUSTER_SIZE - lx;
+			int dy = door[best] / CLUSTER_SIZE - ly;
+			if (dx == 0 && dy == 0)
+				return sideDirs[best];
+			return here.directionTo(here.add(dx, dy));
+		} catch (GameActionException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	private static int cropPacked(MapLocation m) {
+		return (crop(m.x, GameConstants.MAP_MAX_WIDTH) << 7) | crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+	}
+
+	// Coords are offset by a large amount and can be negative
+	private static int crop(int c, int m) {
+		return ((c % m) + m) % m;
+	}
+}
@@ -5,17 +5,55 @@ import battlecode.common.*;
 /*
  * This class stores information about the state of the map
  * This acts as a local cache for the results of a call to rc.senseTerrainTile and includes logic for map symmetry
+ * Tiles we resolve are also shared with the team in the broadcast space from 43200 so other robots can read them
+ * instead of sensing them again
+ * Every symmetry that fits the HQs and towers is kept as a candidate until sensed terrain contradicts it. Candidates
+ * ruled out by any robot are shared on channel 44100 so the whole team narrows down to the real symmetry together
+ * The bounds of the map are shared from 44101 so every robot un-crops coordinates the same way as soon as anyone finds an edge
  */
 public class MapInfo {
-	private TerrainTile[][] map;
+	// Terrain is stored 2 bits a tile, 16 tiles to an int (in cropped index order, MAP_MAX_HEIGHT * x + y)
+	// 0 = not known yet, 1 = NORMAL, 2 = VOID, 3 = OFF_MAP
+	// The team-wide copy in the broadcast space uses the same format
+	private static final int terrainBaseChannel = 43200;
+	private static TerrainTile[] codeTiles = new TerrainTile[] { TerrainTile.UNKNOWN, TerrainTile.NORMAL, TerrainTile.VOID, TerrainTile.OFF_MAP };
+	private static int[] tileCodes = new int[] { 1, 2, 0, 3 }; // Indexed by TerrainTile ordinal
+	// Bit per MapSymmetry ordinal of the candidates some robot has ruled out
+	private static final int symmetryChannel = 44100;
+	// Towers can only be matched up while none have been destroyed
+	private static final int TOWER_CHECK_ROUNDS = 200;
+	// Team-wide bounds: a version count bumped on each change, the area known to be on the map (min x, max x, min y,
+	// max y), the first row or column found off each side of it (same order) and a bit per side that has been found
+	private static final int boundsChannel = 44101;
+	private static final int B_INSIDE = 1;
+	private static final int B_EDGES = 5;
+	private static final int B_FOUND = 9;
+	private static final int WEST = 1;
+	private static final int EAST = 2;
+	private static final int NORTH = 4;
+	private static final int SOUTH = 8;
+
+	private int[] map;
 	private RobotController rc;
 	MapLocation hq;
 	MapLocation ehq;
-	//As we discover the edges of the map, these values are filled in.
+	//As we discover the edges of the map, these are set to the first row or column off the map
+	//Until then they are the edge of the area we know is on the map
 	int	minY;
 	int minX;
 	int maxY;
 	int maxX;
+	private int found; // Bit per side we have found the edge of
+	private int boundsVersion;
+	private boolean boundsChanged;
+	//Cropped coordinates are un-cropped into the MAP_MAX_WIDTH x MAP_MAX_HEIGHT window starting here
+	private int originX;
+	private int originY;
+	//Everything between the HQs, towers and any tile we have seen on the map is on the map (it is a rectangle)
+	private int insideMinY;
+	private int insideMinX;
+	private int insideMaxY;
+	private int insideMaxX;
 	
 	private enum MapSymmetry {
 		NONE,
@@ -25,29 +63,28 @@ public class MapInfo {
 		REFLECT_SLASH, // A Diagonal reflection that looks like a /
 		REFLECT_BACKSLASH // A diagonal reflection that looks like a \
 	}
-	private MapSymmetry symmetry;
+	private static MapSymmetry[] symmetries = MapSymmetry.values();
+	private MapSymmetry symmetry; // NONE until only one candidate is left
+	private int candidates; // Bit per MapSymmetry ordinal still consistent with what we have seen
+	private int updateRound = -1;
 	
 	public MapInfo(RobotController myrc) {
 		rc = myrc;
-		map = new TerrainTile[GameConstants.MAP_MAX_WIDTH][GameConstants.MAP_MAX_HEIGHT];
+		map = new int[GameConstants.MAP_MAX_WIDTH * GameConstants.MAP_MAX_HEIGHT / 16];
 		hq = rc.senseHQLocation();
 		ehq = rc.senseEnemyHQLocation();
 		MapLocation[] towers = rc.senseTowerLocations();
 		MapLocation[] enemy = rc.senseEnemyTowerLocations();
 		
-		if (transform(hq, MapSymmetry.ROTATION).equals(ehq) && (towers.length == 0 ||
-				(towers.length > 0 && transform(towers[0], MapSymmetry.ROTATION).equals(enemy[0]))))
-			symmetry = MapSymmetry.ROTATION;
-		else if (transform(hq, MapSymmetry.REFLECT_X).equals(ehq))
-			symmetry = MapSymmetry.REFLECT_X;
-		else if (transform(hq, MapSymmetry.REFLECT_Y).equals(ehq))
-			symmetry = MapSymmetry.REFLECT_Y;
-		else if (transform(hq, MapSymmetry.REFLECT_SLASH).equals(ehq))
-			symmetry = MapSymmetry.REFLECT_SLASH;
-		else if (transform(hq, MapSymmetry.REFLECT_BACKSLASH).equals(ehq))
-			symmetry = MapSymmetry.REFLECT_BACKSLASH;
-		else
-			symmetry = MapSymmetry.NONE;
+		boolean checkTowers = Clock.getRoundNum() < TOWER_CHECK_ROUNDS && towers.length == enemy.length;
+		int ruledOut = 0;
+		for (int i=1; i<symmetries.length; i++) {
+			if (matches(symmetries[i], checkTowers, towers, enemy))
+				candidates |= 1 << i;
+			else
+				ruledOut |= 1 << i;
+		}
+		publish(ruledOut);
 		
 		// Work out known bounds of map
 		minY = Math.min(hq.y, ehq.y);
@@ -76,68 +113,433 @@ public class MapInfo {
 				maxY = m.y;
 		}
 		
+		insideMinY = minY;
+		insideMinX = minX;
+		insideMaxY = maxY;
+		insideMaxX = maxX;
+		mergeBounds();
+		if (boundsVersion == 0)
+			publishBounds();
+		
 		//System.out.println("Map initialised: Symmetry " + symmetry + " TopLeft " + minX + "," + minY + " BottomRight " + maxX + "," + maxY);
 	}
 	
+	// What we already know about a tile without sensing it - UNKNOWN if we haven't resolved it and it isn't past an edge
+	public TerrainTile known(MapLocation m) {
+		if (updateRound != Clock.getRoundNum())
+			update();
+		if (((found & WEST) != 0 && m.x <= minX) || ((found & EAST) != 0 && m.x >= maxX) ||
+				((found & NORTH) != 0 && m.y <= minY) || ((found & SOUTH) != 0 && m.y >= maxY))
+			return TerrainTile.OFF_MAP;
+		return local(cropX(m.x), cropY(m.y));
+	}
+	
+	// The tile that mirrors m, or null if we don't know the symmetry yet
+	public MapLocation mirror(MapLocation m) {
+		if (updateRound != Clock.getRoundNum())
+			update();
+		if (symmetry == MapSymmetry.NONE)
+			return null;
+		return transform(m, symmetry);
+	}
+	
 	public TerrainTile tile(MapLocation m) {
 		int x = cropX(m.x);
 		int y = cropY(m.y);
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		int code = (map[index >> 4] >>> ((index & 15) << 1)) & 3;
 		//Only sense the tile if we don't have a known result
-		if (map[x][y] == null || map[x][y] == TerrainTile.UNKNOWN) {
-			map[x][y] = rc.senseTerrainTile(m);
-
-			if (map[x][y] == TerrainTile.OFF_MAP) {
-				if (m.x < minX)
-					minX = m.x;
-				if (m.x > maxX)
-					maxX = m.x;
-				if (m.y < minY)
-					minY = m.y;
-				if (m.y > maxY)
-					maxY = m.y;
+		if (code == 0)
+			return resolve(m, x, y);
+		return codeTiles[code];
+	}
+	
+	private TerrainTile resolve(MapLocation m, int x, int y) {
+		if (updateRound != Clock.getRoundNum())
+			update();
+		
+		//A teammate may have resolved it already
+		TerrainTile t = readShared(x, y);
+		if (t != TerrainTile.UNKNOWN) {
+			store(x, y, t);
+			learnBounds(m, t);
+			if (boundsChanged)
+				publishBounds();
+			return t;
+		}
+		
+		t = rc.senseTerrainTile(m);
+		if (symmetry == MapSymmetry.NONE && candidates != 0) {
+			if (t == TerrainTile.UNKNOWN)
+				t = agreedTile(m);
+			else
+				eliminate(m, t);
+		}
+		if (symmetry != MapSymmetry.NONE) {
+			MapLocation opposite = transform(m, symmetry);
+			int ox = cropX(opposite.x);
+			int oy = cropY(opposite.y);
+			TerrainTile known = local(ox, oy);
+			TerrainTile o = known;
+		
+			if (t == TerrainTile.UNKNOWN) {
+				if (o == TerrainTile.UNKNOWN)
+					o = rc.senseTerrainTile(opposite);
+				t = o;
+			} else {
+				o = t;
 			}
-			if (symmetry != MapSymmetry.NONE) {
-				MapLocation opposite = transform(m, symmetry);
-				int ox = cropX(opposite.x);
-				int oy = cropY(opposite.y);
 			
-				if (map[x][y] == TerrainTile.UNKNOWN) {
-					if (map[ox][oy] == null || map[ox][oy] == TerrainTile.UNKNOWN)
-						map[ox][oy] = rc.senseTerrainTile(opposite);
-					map[x][y] = map[ox][oy];
-				} else {
-					map[ox][oy] = map[x][y];
-				}
-				
-				if (map[ox][oy] == TerrainTile.OFF_MAP) {
-					if (opposite.x < minX)
-						minX = opposite.x;
-					if (opposite.x > maxX)
-						maxX = opposite.x;
-					if (opposite.y < minY)
-						minY = opposite.y;
-					if (opposite.y > maxY)
-						maxY = opposite.y;
+			if (o != TerrainTile.UNKNOWN && known == TerrainTile.UNKNOWN) {
+				learnBounds(opposite, o);
+				store(ox, oy, o);
+				writeShared(ox, oy, o);
+			}
+		}
+		if (t != TerrainTile.UNKNOWN) {
+			learnBounds(m, t);
+			store(x, y, t);
+			writeShared(x, y, t);
+		}
+		if (boundsChanged)
+			publishBounds();
+		return t;
+	}
+	
+	// The HQs must map onto each other and every tower onto an enemy tower
+	private boolean matches(MapSymmetry s, boolean checkTowers, MapLocation[] towers, MapLocation[] enemy) {
+		if (!transform(hq, s).equals(ehq))
+			return false;
+		if (!checkTowers)
+			return true;
+		for (MapLocation m: towers) {
+			MapLocation o = transform(m, s);
+			boolean found = false;
+			for (MapLocation e: enemy) {
+				if (o.equals(e)) {
+					found = true;
+					break;
 				}
 			}
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+	
+	// Pick up what the rest of the team has learned about the map, once a round
+	private void update() {
+		mergeBounds();
+		updateSymmetry();
+	}
+	
+	private void updateSymmetry() {
+		updateRound = Clock.getRoundNum();
+		try {
+			candidates &= ~rc.readBroadcast(symmetryChannel);
+		} catch (GameActionException e) {
+			e.printStackTrace();
+		}
+		if (Integer.bitCount(candidates) == 1)
+			symmetry = symmetries[Integer.numberOfTrailingZeros(candidates)];
+		else
+			symmetry = MapSymmetry.NONE;
+	}
+	
+	// Drop any candidate whose mirror of m is known to be different terrain
+	private void eliminate(MapLocation m, TerrainTile t) {
+		int ruledOut = 0;
+		for (int i=1; i<symmetries.length; i++) {
+			if ((candidates & (1 << i)) == 0)
+				continue;
+			MapLocation o = transform(m, symmetries[i]);
+			TerrainTile known = local(cropX(o.x), cropY(o.y));
+			if (known != TerrainTile.UNKNOWN && known != t)
+				ruledOut |= 1 << i;
+		}
+		if (ruledOut != 0)
+			publish(ruledOut);
+	}
+	
+	private void publish(int ruledOut) {
+		candidates &= ~ruledOut;
+		try {
+			int shared = rc.readBroadcast(symmetryChannel);
+			if ((shared | ruledOut) != shared)
+				rc.broadcast(symmetryChannel, shared | ruledOut);
+		} catch (GameActionException e) {
+			e.printStackTrace();
+		}
+		updateSymmetry();
+	}
+	
+	// While we are still unsure of the symmetry we can fill in a tile if every candidate mirrors it to the same terrain
+	// Mirror tiles we sense on the way are real results so we keep them
+	private TerrainTile agreedTile(MapLocation m) {
+		TerrainTile agreed = TerrainTile.UNKNOWN;
+		for (int i=1; i<symmetries.length; i++) {
+			if ((candidates & (1 << i)) == 0)
+				continue;
+			MapLocation o = transform(m, symmetries[i]);
+			int ox = cropX(o.x);
+			int oy = cropY(o.y);
+			TerrainTile known = local(ox, oy);
+			if (known == TerrainTile.UNKNOWN) {
+				known = rc.senseTerrainTile(o);
+				if (known == TerrainTile.UNKNOWN)
+					return known;
+				learnBounds(o, known);
+				store(ox, oy, known);
+				writeShared(ox, oy, known);
+			}
+			if (agreed != TerrainTile.UNKNOWN && known != agreed)
+				return TerrainTile.UNKNOWN;
+			agreed = known;
+		}
+		return agreed;
+	}
+	
+	// x and y are cropped
+	private TerrainTile local(int x, int y) {
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		return codeTiles[(map[index >> 4] >>> ((index & 15) << 1)) & 3];
+	}
+	
+	// Tiles are only stored once they are known so we never have to clear the old value
+	private void store(int x, int y, TerrainTile t) {
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		map[index >> 4] |= tileCodes[t.ordinal()] << ((index & 15) << 1);
+	}
+	
+	private void learnBounds(MapLocation m, TerrainTile t) {
+		if (t == TerrainTile.OFF_MAP)
+			offMap(m);
+		else if (t != TerrainTile.UNKNOWN)
+			onMap(m);
+	}
+	
+	private void onMap(MapLocation m) {
+		if (m.x >= insideMinX && m.x <= insideMaxX && m.y >= insideMinY && m.y <= insideMaxY)
+			return;
+		if (m.x < insideMinX)
+			insideMinX = m.x;
+		if (m.x > insideMaxX)
+			insideMaxX = m.x;
+		if (m.y < insideMinY)
+			insideMinY = m.y;
+		if (m.y > insideMaxY)
+			insideMaxY = m.y;
+		boundsChanged = true;
+		setBounds();
+	}
+	
+	// An off map tile level with the known area tells us the edge on that side is at least that far in
+	private void offMap(MapLocation m) {
+		boolean changed = false;
+		if (m.y >= insideMinY && m.y <= insideMaxY) {
+			if (m.x < insideMinX && ((found & WEST) == 0 || m.x > minX)) {
+				minX = m.x;
+				found |= WEST;
+				changed = true;
+			} else if (m.x > insideMaxX && ((found & EAST) == 0 || m.x < maxX)) {
+				maxX = m.x;
+				found |= EAST;
+				changed = true;
+			}
+		}
+		if (m.x >= insideMinX && m.x <= insideMaxX) {
+			if (m.y < insideMinY && ((found & NORTH) == 0 || m.y > minY)) {
+				minY = m.y;
+				found |= NORTH;
+				changed = true;
+			} else if (m.y > insideMaxY && ((found & SOUTH) == 0 || m.y < maxY)) {
+				maxY = m.y;
+				found |= SOUTH;
+				changed = true;
+			}
+		}
+		if (changed) {
+			boundsChanged = true;
+			setBounds();
+		}
+	}
+	
+	/*
+	 * Sides we haven't found yet stop at the known area
+	 * The un-crop window starts at the west (north) edge if we know it, or far enough back from the east (south) edge to hold
+	 * the widest possible map. Otherwise we centre it on the known area
+	 */
+	private void setBounds() {
+		if ((found & WEST) == 0)
+			minX = insideMinX;
+		if ((found & EAST) == 0)
+			maxX = insideMaxX;
+		if ((found & NORTH) == 0)
+			minY = insideMinY;
+		if ((found & SOUTH) == 0)
+			maxY = insideMaxY;
+		
+		if ((found & WEST) != 0)
+			originX = minX;
+		else if ((found & EAST) != 0)
+			originX = maxX - GameConstants.MAP_MAX_WIDTH;
+		else
+			originX = insideMinX - (GameConstants.MAP_MAX_WIDTH - (insideMaxX - insideMinX + 1)) / 2;
+		if ((found & NORTH) != 0)
+			originY = minY;
+		else if ((found & SOUTH) != 0)
+			originY = maxY - GameConstants.MAP_MAX_HEIGHT;
+		else
+			originY = insideMinY - (GameConstants.MAP_MAX_HEIGHT - (insideMaxY - insideMinY + 1)) / 2;
+	}
+	
+	// Take on anything a teammate has found since we last looked
+	private void mergeBounds() {
+		try {
+			int version = rc.readBroadcast(boundsChannel);
+			if (version != boundsVersion) {
+				boundsVersion = version;
+				insideMinX = Math.min(insideMinX, rc.readBroadcast(boundsChannel + B_INSIDE));
+				insideMaxX = Math.max(insideMaxX, rc.readBroadcast(boundsChannel + B_INSIDE + 1));
+				insideMinY = Math.min(insideMinY, rc.readBroadcast(boundsChannel + B_INSIDE + 2));
+				insideMaxY = Math.max(insideMaxY, rc.readBroadcast(boundsChannel + B_INSIDE + 3));
+				int shared = rc.readBroadcast(boundsChannel + B_FOUND);
+				if ((shared & WEST) != 0)
+					minX = (found & WEST) == 0 ? rc.readBroadcast(boundsChannel + B_EDGES) : Math.max(minX, rc.readBroadcast(boundsChannel + B_EDGES));
+				if ((shared & EAST) != 0)
+					maxX = (found & EAST) == 0 ? rc.readBroadcast(boundsChannel + B_EDGES + 1) : Math.min(maxX, rc.readBroadcast(boundsChannel + B_EDGES + 1));
+				if ((shared & NORTH) != 0)
+					minY = (found & NORTH) == 0 ? rc.readBroadcast(boundsChannel + B_EDGES + 2) : Math.max(minY, rc.readBroadcast(boundsChannel + B_EDGES + 2));
+				if ((shared & SOUTH) != 0)
+					maxY = (found & SOUTH) == 0 ? rc.readBroadcast(boundsChannel + B_EDGES + 3) : Math.min(maxY, rc.readBroadcast(boundsChannel + B_EDGES + 3));
+				found |= shared;
+			}
+		} catch (GameActionException e) {
+			e.printStackTrace();
+		}
+		setBounds();
+	}
+	
+	private void publishBounds() {
+		boundsChanged = false;
+		mergeBounds();
+		try {
+			rc.broadcast(boundsChannel + B_INSIDE, insideMinX);
+			rc.broadcast(boundsChannel + B_INSIDE + 1, insideMaxX);
+			rc.broadcast(boundsChannel + B_INSIDE + 2, insideMinY);
+			rc.broadcast(boundsChannel + B_INSIDE + 3, insideMaxY);
+			rc.broadcast(boundsChannel + B_EDGES, minX);
+			rc.broadcast(boundsChannel + B_EDGES + 1, maxX);
+			rc.broadcast(boundsChannel + B_EDGES + 2, minY);
+			rc.broadcast(boundsChannel + B_EDGES + 3, maxY);
+			rc.broadcast(boundsChannel + B_FOUND, found);
+			rc.broadcast(boundsChannel, ++boundsVersion);
+		} catch (GameActionException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Scouts probe the tile at the edge of their sensor range towards a side of the map nobody has found yet
+	 * The id spreads scouts over the missing sides. Returns where to head next, or null once every side is known
+	 */
+	public MapLocation scout(MapLocation from, int id, int range) {
+		if (updateRound != Clock.getRoundNum())
+			update();
+		int missing = ~found & (WEST | EAST | NORTH | SOUTH);
+		if (missing == 0)
+			return null;
+		for (int i = id % Integer.bitCount(missing); i > 0; i--)
+			missing &= missing - 1;
+		int side = Integer.lowestOneBit(missing);
+		int x = Math.max(insideMinX, Math.min(insideMaxX, from.x));
+		int y = Math.max(insideMinY, Math.min(insideMaxY, from.y));
+		Direction d;
+		if (side == WEST) {
+			d = Direction.WEST;
+			x = insideMinX - range;
+		} else if (side == EAST) {
+			d = Direction.EAST;
+			x = insideMaxX + range;
+		} else if (side == NORTH) {
+			d = Direction.NORTH;
+			y = insideMinY - range;
+		} else {
+			d = Direction.SOUTH;
+			y = insideMaxY + range;
+		}
+		// We only probe for the side effect: tile() records every tile it senses in the bounds, so working inwards from
+		// the furthest tile until one is on the map pins the edge down as soon as it is in sensor range. Once it is
+		// published that side is no longer missing and the next call sends us elsewhere
+		for (int r = range; r > 0 && tile(from.add(d, r)) == TerrainTile.OFF_MAP; r--)
+			;
+		return new MapLocation(x, y);
+	}
+	
+	// x and y are cropped
+	private TerrainTile readShared(int x, int y) {
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		try {
+			return codeTiles[(rc.readBroadcast(terrainBaseChannel + (index >> 4)) >>> ((index & 15) << 1)) & 3];
+		} catch (GameActionException e) {
+			e.printStackTrace();
 		}
-		return map[x][y];
+		return TerrainTile.UNKNOWN;
 	}
 	
+	private void writeShared(int x, int y, TerrainTile t) {
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		int channel = terrainBaseChannel + (index >> 4);
+		int shift = (index & 15) << 1;
+		try {
+			int data = rc.readBroadcast(channel);
+			rc.broadcast(channel, (data & ~(3 << shift)) | (tileCodes[t.ordinal()] << shift));
+		} catch (GameActionException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * x and y are cropped coordinates
+	 * A known tile costs a few shifts, we only work out where it is on the map if we have to sense it
+	 */
 	public TerrainTile tile(int x, int y) {
-		int mx = x + (hq.x/GameConstants.MAP_MAX_WIDTH)*GameConstants.MAP_MAX_WIDTH;
-		int my = y + (hq.y/GameConstants.MAP_MAX_HEIGHT)*GameConstants.MAP_MAX_HEIGHT;
-
-		while (mx > maxX)
-			mx -= GameConstants.MAP_MAX_WIDTH;
-		while (mx < minX)
-			mx += GameConstants.MAP_MAX_WIDTH;;
-		while (my > maxY)
-			my -= GameConstants.MAP_MAX_HEIGHT;
-		while (my < minY)
-			my += GameConstants.MAP_MAX_HEIGHT;
-		//System.out.println("Mapping " + x + "," + y + " to " + mx + "," + my);
-		return tile(new MapLocation(mx, my));
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		int code = (map[index >> 4] >>> ((index & 15) << 1)) & 3;
+		if (code != 0)
+			return codeTiles[code];
+		return resolve(new MapLocation(uncropX(x), uncropY(y)), x, y);
+	}
+	
+	/*
+	 * The terrain as seen by a drone - VOID is returned as NORMAL as drones can fly over it
+	 * Tiles inside the area we know is on the map don't need to be sensed at all
+	 */
+	public TerrainTile flightTile(int x, int y) {
+		int index = GameConstants.MAP_MAX_HEIGHT * x + y;
+		int code = (map[index >> 4] >>> ((index & 15) << 1)) & 3;
+		TerrainTile t;
+		if (code != 0) {
+			t = codeTiles[code];
+		} else {
+			int mx = uncropX(x);
+			int my = uncropY(y);
+			if (mx >= insideMinX && mx <= insideMaxX && my >= insideMinY && my <= insideMaxY)
+				return TerrainTile.NORMAL;
+			t = resolve(new MapLocation(mx, my), x, y);
+		}
+		if (t == TerrainTile.VOID)
+			return TerrainTile.NORMAL;
+		return t;
+	}
+	
+	// The map coordinate of a cropped one - somewhere in the window that holds the whole map as far as we know
+	private int uncropX(int x) {
+		return originX + crop(x - originX, GameConstants.MAP_MAX_WIDTH);
+	}
+	
+	private int uncropY(int y) {
+		return originY + crop(y - originY, GameConstants.MAP_MAX_HEIGHT);
 	}
 	
 	public void dump() {
@@ -145,14 +547,14 @@ public class MapInfo {
 		for (int y=minY; y <= maxY; y++) {
 			int cy = cropY(y);
 			for (int x=minX; x <= maxX; x++) {
-				int cx = cropX(x);
-				if (map[cx][cy] == null || map[cx][cy] == TerrainTile.UNKNOWN)
+				TerrainTile t = local(cropX(x), cy);
+				if (t == TerrainTile.UNKNOWN)
 					System.out.printf("?");
-				else if (map[cx][cy] == null || map[cx][cy] == TerrainTile.NORMAL)
+				else if (t == TerrainTile.NORMAL)
 					System.out.printf(" ");
-				else if (map[cx][cy] == null || map[cx][cy] == TerrainTile.VOID)
+				else if (t == TerrainTile.VOID)
 					System.out.printf("*");
-				else if (map[cx][cy] == null || map[cx][cy] == TerrainTile.OFF_MAP)
+				else if (t == TerrainTile.OFF_MAP)
 					System.out.printf("X");
 			}
 			System.out.println("");
@@ -0,0 +1,185 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * A team-wide estimate of the ore in each 4x4 block of the map, kept in the broadcast space from 47400
+ * Robots survey the block they are in as they move about. Tiles nobody has seen are estimated from their mirror image
+ * as the starting ore is symmetric. A block is surveyed again every few rounds while we stay in it so mined out
+ * blocks fade away
+ * The richest blocks are kept in a short hotspot list so idle miners and new ones head straight for them
+ * Miners lease the block they are working so others look elsewhere. A lease lapses if it isn't renewed, like a Bfs page
+ */
+public class OreMap {
+	private static final int BLOCK = 4;
+	private static final int BLOCKS_Y = GameConstants.MAP_MAX_HEIGHT / BLOCK;
+	// Each block holds the ore in it + 1 so 0 means nobody has surveyed it
+	private static final int oreBaseChannel = 47400;
+	// Each hotspot holds the ore << 10 | block + 1, or 0 if the slot is free
+	private static final int hotspotChannel = oreBaseChannel + GameConstants.MAP_MAX_WIDTH * GameConstants.MAP_MAX_HEIGHT / (BLOCK * BLOCK);
+	private static final int HOTSPOTS = 8;
+	// Each block's lease holds the round it was last renewed (12 bits) << 16 | the id of the holder (16 bits)
+	private static final int claimChannel = hotspotChannel + HOTSPOTS;
+	private static final int CLAIM_ROUNDS = 20;
+	private static final int MAX_ORE = (1 << 21) - 1;
+	private static final int RESURVEY_ROUNDS = 10;
+	private static final int AVOID_ROUNDS = 100;
+
+	private RobotController rc;
+	private MapInfo map; // Used to find mirror images - can be null for robots that only read the hotspots
+	private int lastBlock = -1;
+	private int lastSurvey;
+	private int[] avoidUntil; // Per block, the round we will consider it again after failing to get there
+
+	public OreMap(RobotController myrc, MapInfo theMap) {
+		rc = myrc;
+		map = theMap;
+	}
+
+	// Survey the block containing m if we have just moved into it or haven't looked for a while
+	public void survey(MapLocation m) {
+		int x = crop(m.x, GameConstants.MAP_MAX_WIDTH);
+		int y = crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+		int block = (x / BLOCK) * BLOCKS_Y + y / BLOCK;
+		int now = Clock.getRoundNum();
+		if (block == lastBlock && now - lastSurvey < RESURVEY_ROUNDS)
+			return;
+		lastBlock = block;
+		lastSurvey = now;
+
+		MapLocation corner = m.add(-(x % BLOCK), -(y % BLOCK));
+		double total = 0;
+		for (int i=0; i<BLOCK; i++) {
+			for (int j=0; j<BLOCK; j++) {
+				MapLocation t = corner.add(i, j);
+				double ore = rc.senseOre(t);
+				if (ore < 0 && map != null) { // Never seen - try the mirror image
+					MapLocation o = map.mirror(t);
+					if (o != null)
+						ore = rc.senseOre(o);
+				}
+				if (ore > 0)
+					total += ore;
+			}
+		}
+		int value = Math.min((int)total, MAX_ORE);
+
+		try {
+			rc.broadcast(oreBaseChannel + block, value + 1);
+			rank(block, value);
+		} catch (GameActionException e) {
+			System.out.println("Ore survey exception");
+			//e.printStackTrace();
+		}
+	}
+
+	// Keep the hotspot list up to date - a block already in it takes its new value, otherwise it replaces the poorest
+	private void rank(int block, int value) throws GameActionException {
+		int poorest = -1;
+		int poorestValue = Integer.MAX_VALUE;
+		for (int i=0; i<HOTSPOTS; i++) {
+			int h = rc.readBroadcast(hotspotChannel + i);
+			if (h == 0) {
+				if (poorestValue >= 0) {
+					poorest = i;
+					poorestValue = -1;
+				}
+				continue;
+			}
+			if ((h & 1023) - 1 == block) {
+				rc.broadcast(hotspotChannel + i, value > 0 ? (value << 10) | (block + 1) : 0);
+				return;
+			}
+			if ((h >>> 10) < poorestValue) {
+				poorest = i;
+				poorestValue = h >>> 10;
+			}
+		}
+		if (value > 0 && value > poorestValue)
+			rc.broadcast(hotspotChannel + poorest, (value << 10) | (block + 1));
+	}
+
+	/*
+	 * The centre of the hotspot with the most ore for the distance from m, ignoring ones in range of the enemy towers or HQ
+	 * and ones with less than minOre in them. Returns null if we don't know of any
+	 */
+	public MapLocation best(MapLocation m, Threats threats, int minOre) {
+		int x = crop(m.x, GameConstants.MAP_MAX_WIDTH);
+		int y = crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+		MapLocation best = null;
+		int bestScore = 0;
+		try {
+			for (int i=0; i<HOTSPOTS; i++) {
+				int h = rc.readBroadcast(hotspotChannel + i);
+				if ((h >>> 10) < minOre)
+					continue;
+				int block = (h & 1023) - 1;
+				if ((avoidUntil != null && avoidUntil[block] > Clock.getRoundNum()) || claimedByOther(block))
+					continue;
+				// Work out the offset in cropped space so we don't need to know where the map starts
+				int dx = wrap((block / BLOCKS_Y) * BLOCK + BLOCK/2 - x, GameConstants.MAP_MAX_WIDTH);
+				int dy = wrap((block % BLOCKS_Y) * BLOCK + BLOCK/2 - y, GameConstants.MAP_MAX_HEIGHT);
+				int score = (h >>> 10) * 16 / (Math.max(Math.abs(dx), Math.abs(dy)) + 8);
+				if (score > bestScore) {
+					MapLocation centre = m.add(dx, dy);
+					if (threats == null || !threats.inStaticRange(centre)) {
+						best = centre;
+						bestScore = score;
+					}
+				}
+			}
+		} catch (GameActionException e) {
+			System.out.println("Ore hotspot exception");
+			//e.printStackTrace();
+		}
+		return best;
+	}
+
+	/*
+	 * Take or renew the lease on the block containing m
+	 * Returns false if another robot holds it
+	 */
+	public boolean claim(MapLocation m) {
+		int x = crop(m.x, GameConstants.MAP_MAX_WIDTH);
+		int y = crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+		int channel = claimChannel + (x / BLOCK) * BLOCKS_Y + y / BLOCK;
+		int now = Clock.getRoundNum();
+		int id = rc.getID() & 0xffff;
+		try {
+			int lease = rc.readBroadcast(channel);
+			int renewed = (lease >>> 16) & 0xfff;
+			if (lease != 0 && (lease & 0xffff) != id && ((now - renewed) & 0xfff) <= CLAIM_ROUNDS)
+				return false;
+			if (lease == 0 || (lease & 0xffff) != id || ((now - renewed) & 0xfff) > CLAIM_ROUNDS/2) // Renew half way through
+				rc.broadcast(channel, ((now & 0xfff) << 16) | id);
+		} catch (GameActionException e) {
+			System.out.println("Ore claim exception");
+			//e.printStackTrace();
+		}
+		return true;
+	}
+
+	private boolean claimedByOther(int block) throws GameActionException {
+		int lease = rc.readBroadcast(claimChannel + block);
+		return lease != 0 && (lease & 0xffff) != (rc.getID() & 0xffff) &&
+				((Clock.getRoundNum() - (lease >>> 16)) & 0xfff) <= CLAIM_ROUNDS;
+	}
+
+	// We couldn't make progress towards this hotspot (it is probably behind a wall) so leave it alone for a while
+	public void avoid(MapLocation m) {
+		if (avoidUntil == null)
+			avoidUntil = new int[GameConstants.MAP_MAX_WIDTH * GameConstants.MAP_MAX_HEIGHT / (BLOCK * BLOCK)];
+		int x = crop(m.x, GameConstants.MAP_MAX_WIDTH);
+		int y = crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+		avoidUntil[(x / BLOCK) * BLOCKS_Y + y / BLOCK] = Clock.getRoundNum() + AVOID_ROUNDS;
+	}
+
+	private static int crop(int c, int m) {
+		return ((c % m) + m) % m;
+	}
+
+	// The shortest signed offset for a difference in cropped space
+	private static int wrap(int d, int m) {
+		return crop(d + m/2, m) - m/2;
+	}
+}
@@ -0,0 +1,255 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * Plans what the team builds over the next STEPS * STEP rounds and publishes it as a production queue from 50900
+ * The HQ works out how many more of each type it wants, then schedules them highest priority first onto the robots
+ * that can make them (beavers for buildings, the spawning building for units) in steps of STEP rounds. Each build
+ * goes in the first step where its producer is free, the building it depends on is finished and the ore we expect to
+ * have by then (our bank plus measured income) still covers everything scheduled ahead of it, so cheap builds only go
+ * early if they don't hold up anything more important. A building we want that needs one we don't have pulls that in
+ * ahead of it, and nothing is started that wouldn't be finished before the game ends
+ * Factories and beavers take the first build due now that they can make and mark it taken once it is built
+ * The header is the plan round << 8 | entries and each entry is taken << 24 | priority << 20 | type << 12 | start round
+ */
+public class Planner {
+	private static final int queueHeaderChannel = 50900;
+	private static final int queueBaseChannel = 50901;
+	private static final int QUEUE_SIZE = 16;
+	private static final int STEP = 10; // Rounds
+	private static final int STEPS = 6;
+	private static final int MAX_PRODUCERS = 16; // Of each type - any more are left out of the plan
+	private static final int MAX_WANTED = 3; // Of each type in one plan
+	private static final int PLAN_BYTECODES = 1200; // We skip planning this turn if we have less than this left over stopWhen
+	private static final int SCHEDULE_BYTECODES = 700; // The most fitting one build (and what it depends on) can take
+	private static final int TYPE_BYTECODES = 150; // Roughly what a type we want none of costs to look at
+	private static final int TAKEN = 1 << 24;
+	private static final int UNPLANNED = Integer.MAX_VALUE;
+	// The types we plan in the order they are scheduled - highest priority first
+	private static final RobotType[] plannedTypes = {
+		RobotType.MINERFACTORY, RobotType.MINER, RobotType.LAUNCHER, RobotType.AEROSPACELAB, RobotType.HELIPAD,
+		RobotType.DRONE, RobotType.BEAVER, RobotType.COMMANDER, RobotType.TECHNOLOGYINSTITUTE, RobotType.TRAININGFIELD,
+		RobotType.COMPUTER, RobotType.SUPPLYDEPOT, RobotType.HANDWASHSTATION
+	};
+	private static RobotType[] types = RobotType.values();
+
+	private RobotController rc;
+	private BuildStrategy strategy;
+	private int taken = -1; // The entry we are building
+
+	// HQ only
+	private double[] spare; // The ore we can spend at each step without leaving anything planned later short
+	private int[][] freeAt; // Per producer type, the step each producer is next free
+	private int[] producers; // Per producer type, the number we have
+	private int[] ready; // Per type, the step the first one is finished, UNPLANNED if we don't have or plan one
+	// The round we last set up producers and ready for each type - we only look at the types a plan needs so it fits
+	// in the bytecodes the HQ has left
+	private int[] producersRound;
+	private int[] readyRound;
+	private double income; // Ore per round we are mining
+	private int entries;
+	private int round;
+
+	public Planner(RobotController myrc, BuildStrategy theStrategy) {
+		rc = myrc;
+		strategy = theStrategy;
+	}
+
+	// HQ only - plan the next few steps and publish the queue, leaving stopWhen bytecodes for the rest of the turn
+	public void plan(int stopWhen) {
+		if (Clock.getBytecodesLeft() < stopWhen + PLAN_BYTECODES)
+			return; // Factories keep working through the last plan
+		if (spare == null) {
+			spare = new double[STEPS];
+			freeAt = new int[types.length][MAX_PRODUCERS];
+			producers = new int[types.length];
+			ready = new int[types.length];
+			producersRound = new int[types.length];
+			readyRound = new int[types.length];
+			for (int i=0; i<types.length; i++) {
+				producersRound[i] = -1;
+				readyRound[i] = -1;
+			}
+		}
+		round = Clock.getRoundNum();
+		double bank = rc.getTeamOre();
+		income = strategy.income(BuildStrategy.LEDGER_ROUNDS);
+		for (int k=0; k<STEPS; k++) // Only ever goes up until we plan to spend it
+			spare[k] = bank + Math.max(0, income) * STEP * k;
+		entries = 0;
+
+		try {
+			for (int i=0; i<plannedTypes.length; i++) {
+				if (Clock.getBytecodesLeft() < stopWhen + SCHEDULE_BYTECODES)
+					break; // The lowest priority builds wait for a turn with more to spare
+				RobotType t = plannedTypes[i];
+				int p = strategy.priority(t);
+				int n = Math.min(MAX_WANTED, wanted(t));
+				if (n <= 0 || schedule(t, p) == UNPLANNED)
+					continue;
+				// We only plan more than one of a type if we can still look at all the types after it
+				int keep = stopWhen + SCHEDULE_BYTECODES + (plannedTypes.length - i - 1) * TYPE_BYTECODES;
+				for (n--; n > 0 && Clock.getBytecodesLeft() > keep; n--) {
+					if (schedule(t, p) == UNPLANNED)
+						break;
+				}
+			}
+			rc.broadcast(queueHeaderChannel, (round << 8) | entries);
+		} catch (GameActionException e) {
+			System.out.println("Plan exception");
+			//e.printStackTrace();
+		}
+	}
+
+	// How many more of this type we want
+	private int wanted(RobotType t) {
+		switch (t) {
+		case MINERFACTORY:
+			return strategy.units(t) == 0 ? 1 : 0;
+		case MINER:
+			return strategy.requiredMiners() - strategy.units(t);
+		case LAUNCHER: // As many as the labs can make
+			return strategy.units(RobotType.AEROSPACELAB);
+		case AEROSPACELAB: // Only when the labs we have are busy, aren't using all we mine and ore has been building up lately
+			return !strategy.idle(t) && (strategy.units(t) == 0 || (income > strategy.spending(BuildStrategy.LEDGER_ROUNDS) &&
+					strategy.bank(STEP) >= strategy.bank(BuildStrategy.LEDGER_ROUNDS))) ? 1 : 0;
+		case HELIPAD:
+		case COMMANDER:
+			return strategy.units(t) == 0 ? 1 : 0;
+		case DRONE:
+			return 1 + round/850 - strategy.units(t);
+		case BEAVER: //We need more beavers to build factories if we have spare ore
+			return (round+300)/200 - strategy.units(t);
+		case TECHNOLOGYINSTITUTE:
+		case TRAININGFIELD:
+			return strategy.units(t) == 0 && strategy.units(RobotType.AEROSPACELAB) > 0 ? 1 : 0;
+		case COMPUTER:
+			return round > 600 && strategy.units(t) < 1 ? 1 : 0;
+		case SUPPLYDEPOT:
+			return Math.min(36, strategy.requiredTowers()) - strategy.units(t);
+		case HANDWASHSTATION: // Spend whatever is left at the end of the game
+			return rc.getRoundLimit() - round < 200 ? strategy.units(RobotType.BEAVER) : 0;
+		default:
+			return 0;
+		}
+	}
+
+	// Fit one of this type into the plan, returning the step it will be finished or UNPLANNED if it doesn't fit
+	private int schedule(RobotType t, int priority) throws GameActionException {
+		int earliest = 0;
+		RobotType source = t.spawnSource;
+		if (t.isBuilding) {
+			source = RobotType.BEAVER;
+			RobotType needs = t.dependency;
+			if (needs != null && needs != RobotType.HQ) {
+				int i = needs.ordinal();
+				if (readyRound[i] != round) {
+					readyRound[i] = round;
+					ready[i] = strategy.units(needs) > 0 ? 0 : UNPLANNED;
+				}
+				if (ready[i] == UNPLANNED) // Build what it needs first
+					ready[i] = schedule(needs, priority);
+				earliest = ready[i];
+			}
+		}
+		if (source == null || earliest >= STEPS)
+			return UNPLANNED;
+
+		// The producer that is free first
+		int[] free = freeAt[source.ordinal()];
+		int n = countProducers(source, t);
+		if (n == 0)
+			return UNPLANNED;
+		int p = 0;
+		for (int i=1; i<n; i++) {
+			if (free[i] < free[p])
+				p = i;
+		}
+		int start = Math.max(earliest, free[p]);
+
+		// The first step from which we can pay for it - spare never goes down so the first that is enough will do
+		int cost = t.oreCost;
+		int k = start;
+		while (k < STEPS && spare[k] < cost)
+			k++;
+		if (k >= STEPS || (t != RobotType.HANDWASHSTATION && round + k*STEP + t.buildTurns >= rc.getRoundLimit()))
+			return UNPLANNED;
+
+		// Spending it leaves less spare from then on, and no more than that before it
+		for (int j=k; j<STEPS; j++)
+			spare[j] -= cost;
+		for (int j=k-1; j>=0 && spare[j] > spare[j+1]; j--)
+			spare[j] = spare[j+1];
+		free[p] = k + (t.isBuilding ? 1 : (t.buildTurns + STEP - 1) / STEP); // Beavers can walk off and build again
+		if (entries < QUEUE_SIZE)
+			rc.broadcast(queueBaseChannel + entries++, (priority << 20) | (t.ordinal() << 12) | (round + k*STEP));
+		int done = k + (t.buildTurns + STEP - 1) / STEP;
+		int i = t.ordinal();
+		if (readyRound[i] != round) {
+			readyRound[i] = round;
+			ready[i] = strategy.units(t) > 0 ? 0 : UNPLANNED;
+		}
+		if (done < ready[i])
+			ready[i] = done;
+		return done;
+	}
+
+	// Set up when each producer of this type is next free the first time we need them in a plan
+	private int countProducers(RobotType source, RobotType t) {
+		int s = source.ordinal();
+		if (producersRound[s] == round)
+			return producers[s];
+		producersRound[s] = round;
+		int n = source == RobotType.HQ ? 1 : Math.min(MAX_PRODUCERS, strategy.units(source));
+		int busy = source == RobotType.BEAVER ? 0 : (t.buildTurns / 2 + STEP - 1) / STEP; // Halfway through on average
+		for (int i=0; i<n; i++)
+			freeAt[s][i] = busy;
+		if (n > 0) {
+			if (source == RobotType.HQ)
+				freeAt[s][0] = rc.getCoreDelay() < 1 ? 0 : 1;
+			else if (strategy.idle(source))
+				freeAt[s][0] = 0;
+		}
+		producers[s] = n;
+		return n;
+	}
+
+	// The first build due now that we can make, or null if there isn't one
+	public RobotType next() {
+		taken = -1;
+		int now = Clock.getRoundNum();
+		RobotType me = rc.getType();
+		try {
+			int n = rc.readBroadcast(queueHeaderChannel) & 0xff;
+			for (int i=0; i<n; i++) {
+				int e = rc.readBroadcast(queueBaseChannel + i);
+				if ((e & TAKEN) != 0 || (e & 0xfff) > now)
+					continue;
+				RobotType t = types[(e >>> 12) & 31];
+				if (me == RobotType.BEAVER ? t.isBuilding : t.spawnSource == me) {
+					taken = i;
+					return t;
+				}
+			}
+		} catch (GameActionException e) {
+			System.out.println("Queue read exception");
+			//e.printStackTrace();
+		}
+		return null;
+	}
+
+	// We have built what we took from the queue
+	public void built() {
+		if (taken < 0)
+			return;
+		try {
+			int e = rc.readBroadcast(queueBaseChannel + taken);
+			rc.broadcast(queueBaseChannel + taken, e | TAKEN);
+		} catch (GameActionException e) {
+			System.out.println("Queue write exception");
+			//e.printStackTrace();
+		}
+		taken = -1;
+	}
+}
@@ -0,0 +1,246 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * A table of every robot on our team (except missiles, towers and the HQ) in the broadcast space from 50100
+ * Each robot owns a slot found by hashing its id and writes a heartbeat into it: the round it expires if it stops
+ * beating, and whether it is idle. Builders write the first beat for the robots they make so they are counted while
+ * they are being built
+ * Slot word 0 is id (15 bits) << 17 | type << 12 | expiry round (12 bits)
+ * Slot word 1 is idle << 15 - it is only written when it changes so robots that can't spawn write it once
+ * A robot that takes a slot adds it to a join log so the HQ can keep its counts up to date from the changes instead of
+ * sensing the whole team. The HQ finds robots that have died by checking a few slots a turn for expired beats
+ */
+public class Registry {
+	private static final int SLOTS = 256;
+	private static final int registryBaseChannel = 50100; // 2 channels per slot
+	private static final int joinCountChannel = registryBaseChannel + 2 * SLOTS; // Total joins ever
+	private static final int joinBaseChannel = joinCountChannel + 1;
+	private static final int JOIN_LOG = 64;
+	private static final int EXPIRE_ROUNDS = 6; // Rounds a beat lasts
+	private static final int RENEW_ROUNDS = 3; // We beat again when this close to expiring
+	private static final int MAX_PROBES = 32;
+	private static final int CHECKS_PER_TURN = 16;
+
+	private RobotController rc;
+	private int slot = -1; // Our own slot
+	private int expires; // When our last beat runs out
+	private int lastStatus = -1; // What we last wrote to word 1
+	private MapLocation built; // Where we built a robot last turn - it can't be sensed until the turn after
+
+	// HQ only - what it knows of the table
+	private int[] slotWord; // Word 0 of each slot as it was when we counted it, 0 if we aren't counting it
+	private int[] factorySlots; // Slots of robots that can spawn - checked every turn for their idle flag
+	private int numFactories;
+	private int[] otherSlots; // Everything else - checked a few at a time
+	private int numOthers;
+	private int nextCheck;
+	private int joinsRead;
+	private int[] counts;
+	private boolean[] idle;
+
+	public Registry(RobotController myrc) {
+		rc = myrc;
+	}
+
+	// Write our heartbeat - word 0 is only renewed every few rounds and word 1 when it changes
+	public void beat() {
+		int now = Clock.getRoundNum();
+		try {
+			if (built != null) {
+				RobotInfo r = rc.senseRobotAtLocation(built);
+				built = null;
+				if (r != null && r.team == rc.getTeam())
+					register(r);
+			}
+			if (slot < 0) {
+				slot = claim(rc.getID(), rc.getType(), now + EXPIRE_ROUNDS);
+				if (slot < 0)
+					return;
+			} else if (expires < now) { // We missed our beats so the HQ may have stopped counting us
+				expires = 0;
+				logJoin(slot);
+			}
+			if (expires - now <= RENEW_ROUNDS) {
+				expires = now + EXPIRE_ROUNDS;
+				rc.broadcast(registryBaseChannel + 2 * slot, word(rc.getID(), rc.getType(), expires));
+			}
+			int status = 0;
+			if (rc.getType().canSpawn() && rc.getCoreDelay() < 1)
+				status = 1 << 15;
+			if (status != lastStatus) {
+				lastStatus = status;
+				rc.broadcast(registryBaseChannel + 2 * slot + 1, status);
+			}
+		} catch (GameActionException e) {
+			System.out.println("Heartbeat exception");
+			//e.printStackTrace();
+		}
+	}
+
+	// Builders register the robot they have just made on their next beat so it is counted until it can beat for itself
+	public void built(MapLocation m) {
+		built = m;
+	}
+	
+	private void register(RobotInfo r) {
+		try {
+			int s = claim(r.ID, r.type, Clock.getRoundNum() + r.type.buildTurns + EXPIRE_ROUNDS);
+			if (s >= 0) // Nothing is spawning from it while it is being built so it counts as idle
+				rc.broadcast(registryBaseChannel + 2 * s + 1, 1 << 15);
+		} catch (GameActionException e) {
+			System.out.println("Register exception");
+			//e.printStackTrace();
+		}
+	}
+
+	// Find the slot for this id, taking a free or expired one (and logging the join) if it doesn't have one yet
+	private int claim(int id, RobotType t, int until) throws GameActionException {
+		int now = Clock.getRoundNum();
+		int free = -1;
+		for (int i=0; i<MAX_PROBES; i++) {
+			int s = (id + i) % SLOTS;
+			int w = rc.readBroadcast(registryBaseChannel + 2 * s);
+			if (w != 0 && (w >>> 17) == (id & 0x7fff))
+				return s;
+			if (w == 0 || (w & 0xfff) < now) {
+				if (free < 0)
+					free = s;
+				if (w == 0) // Nobody has ever used the slots after this one in the probe
+					break;
+			}
+		}
+		if (free < 0)
+			return -1;
+		rc.broadcast(registryBaseChannel + 2 * free, word(id, t, until));
+		logJoin(free);
+		return free;
+	}
+	
+	private void logJoin(int s) throws GameActionException {
+		int joins = rc.readBroadcast(joinCountChannel);
+		rc.broadcast(joinBaseChannel + joins % JOIN_LOG, s);
+		rc.broadcast(joinCountChannel, joins + 1);
+	}
+
+	private static int word(int id, RobotType t, int expires) {
+		return ((id & 0x7fff) << 17) | (t.ordinal() << 12) | (expires & 0xfff);
+	}
+
+	/*
+	 * HQ only - bring the counts up to date
+	 * New robots come from the join log, factories are checked every turn and everything else a few slots a turn
+	 */
+	public void update() {
+		if (counts == null) {
+			slotWord = new int[SLOTS];
+			factorySlots = new int[SLOTS];
+			otherSlots = new int[SLOTS];
+			counts = new int[RobotType.values().length];
+			idle = new boolean[RobotType.values().length];
+		}
+		int now = Clock.getRoundNum();
+		try {
+			int joins = rc.readBroadcast(joinCountChannel);
+			if (joins - joinsRead > JOIN_LOG) { // We missed some so read the whole table
+				for (int s=0; s<SLOTS; s++)
+					join(s);
+			} else {
+				for (int j=joinsRead; j<joins; j++)
+					join(rc.readBroadcast(joinBaseChannel + j % JOIN_LOG));
+			}
+			joinsRead = joins;
+
+			for (int i=0; i<counts.length; i++)
+				idle[i] = false;
+			for (int i=numFactories-1; i>=0; i--) {
+				int s = factorySlots[i];
+				if (!alive(s, now)) {
+					leave(s);
+					factorySlots[i] = factorySlots[--numFactories];
+				} else if ((rc.readBroadcast(registryBaseChannel + 2 * s + 1) & (1 << 15)) != 0) {
+					idle[(slotWord[s] >>> 12) & 31] = true;
+				}
+			}
+
+			for (int n=Math.min(CHECKS_PER_TURN, numOthers); n>0; n--) {
+				if (nextCheck >= numOthers)
+					nextCheck = 0;
+				int s = otherSlots[nextCheck];
+				if (!alive(s, now)) {
+					leave(s);
+					otherSlots[nextCheck] = otherSlots[--numOthers];
+				} else {
+					nextCheck++;
+				}
+			}
+		} catch (GameActionException e) {
+			System.out.println("Registry exception");
+			//e.printStackTrace();
+		}
+	}
+
+	// The robot we counted in this slot is still beating
+	private boolean alive(int s, int now) throws GameActionException {
+		int w = rc.readBroadcast(registryBaseChannel + 2 * s);
+		return (w >>> 12) == (slotWord[s] >>> 12) && (w & 0xfff) >= now;
+	}
+
+	private void join(int s) throws GameActionException {
+		int w = rc.readBroadcast(registryBaseChannel + 2 * s);
+		if (w == 0 || (w & 0xfff) < Clock.getRoundNum() || (w >>> 12) == (slotWord[s] >>> 12))
+			return;
+		if (slotWord[s] != 0) { // Someone else had this slot - forget them
+			counts[(slotWord[s] >>> 12) & 31]--;
+			slotWord[s] = 0;
+			removeSlot(s);
+		}
+		slotWord[s] = w;
+		int t = (w >>> 12) & 31;
+		counts[t]++;
+		if (RobotType.values()[t].canSpawn())
+			factorySlots[numFactories++] = s;
+		else
+			otherSlots[numOthers++] = s;
+	}
+
+	private void leave(int s) {
+		counts[(slotWord[s] >>> 12) & 31]--;
+		slotWord[s] = 0;
+	}
+
+	private void removeSlot(int s) {
+		for (int i=0; i<numFactories; i++) {
+			if (factorySlots[i] == s) {
+				factorySlots[i] = factorySlots[--numFactories];
+				return;
+			}
+		}
+		for (int i=0; i<numOthers; i++) {
+			if (otherSlots[i] == s) {
+				otherSlots[i] = otherSlots[--numOthers];
+				return;
+			}
+		}
+	}
+
+	// HQ only - the number of robots of this type we know of
+	public int count(RobotType t) {
+		return counts[t.ordinal()];
+	}
+
+	// HQ only - true if a robot of this type can spawn but isn't
+	public boolean idle(RobotType t) {
+		return idle[t.ordinal()];
+	}
+
+	// HQ only - the counts and idle flags of every type by ordinal, for reading them all at once (don't change them)
+	public int[] counts() {
+		return counts;
+	}
+
+	public boolean[] idleTypes() {
+		return idle;
+	}
+}
@@ -0,0 +1,90 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * Ore that producers have put aside for something they want to build, kept in the broadcast space from 50800
+ * A factory or beaver that wants to build but can't afford it once the reservations above it are taken off reserves
+ * the cost at its priority until a few rounds from now, so lower priority builds wait for it rather than spending the
+ * ore first just because they happened to run earlier in the round. Each slot is one word:
+ * owner id (10 bits) << 22 | priority (3 bits) << 19 | ore in tens (7 bits) << 12 | expiry round (12 bits)
+ * Reservations at the same priority are ordered by owner id so two producers can't both wait for each other
+ */
+public class Reservations {
+	private static final int SLOTS = 8;
+	private static final int reservationBaseChannel = 50800;
+	private static final int HOLD_ROUNDS = 2; // Rounds a reservation lasts if it isn't renewed
+
+	private RobotController rc;
+	private int owner;
+	private int slot = -1; // The slot holding our reservation
+
+	public Reservations(RobotController myrc) {
+		rc = myrc;
+		owner = rc.getID() & 0x3ff;
+	}
+
+	// Put aside ore for a build at this priority, replacing any reservation we already hold
+	public void reserve(int priority, int ore) {
+		int now = Clock.getRoundNum();
+		int word = (owner << 22) | (priority << 19) | (Math.min(127, (ore + 9) / 10) << 12) | (now + HOLD_ROUNDS);
+		try {
+			if (slot >= 0) { // Ours may have run out and been taken by someone else
+				int w = rc.readBroadcast(reservationBaseChannel + slot);
+				if (w != 0 && (w & 0xfff) >= now && (w >>> 22) != owner)
+					slot = -1;
+			}
+			if (slot < 0) {
+				for (int i=0; i<SLOTS; i++) {
+					int s = (owner + i) % SLOTS;
+					int w = rc.readBroadcast(reservationBaseChannel + s);
+					if (w == 0 || (w & 0xfff) < now || (w >>> 22) == owner) {
+						slot = s;
+						break;
+					}
+				}
+				if (slot < 0) // Everyone is waiting already so we wait too without holding anything
+					return;
+			}
+			rc.broadcast(reservationBaseChannel + slot, word);
+		} catch (GameActionException e) {
+			System.out.println("Reserve exception");
+			//e.printStackTrace();
+		}
+	}
+
+	// We have built what we were saving for
+	public void release() {
+		if (slot < 0)
+			return;
+		try {
+			if ((rc.readBroadcast(reservationBaseChannel + slot) >>> 22) == owner)
+				rc.broadcast(reservationBaseChannel + slot, 0);
+		} catch (GameActionException e) {
+			System.out.println("Release exception");
+			//e.printStackTrace();
+		}
+		slot = -1;
+	}
+
+	// The ore other producers have reserved ahead of a build at this priority
+	public int heldAbove(int priority) {
+		int now = Clock.getRoundNum();
+		int held = 0;
+		try {
+			for (int s=0; s<SLOTS; s++) {
+				int w = rc.readBroadcast(reservationBaseChannel + s);
+				if (w == 0 || (w & 0xfff) < now)
+					continue;
+				int id = w >>> 22;
+				int p = (w >>> 19) & 7;
+				if (id != owner && (p > priority || (p == priority && id < owner)))
+					held += ((w >>> 12) & 127) * 10;
+			}
+		} catch (GameActionException e) {
+			System.out.println("Reservation read exception");
+			//e.printStackTrace();
+		}
+		return held;
+	}
+}
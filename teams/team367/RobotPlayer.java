@@ -9,6 +9,12 @@ public class RobotPlayer {
 	static Bfs bfs; //A background breadth first search class for units that walk on the ground
 	static BuildStrategy strategy; //Used to determine the next build order
 	static Threats threats; //Stored the tiles threatened by the enemy towers and HQ
+	static OreMap oreMap; //Team-wide ore estimates and the richest blocks
+	static Sightings sightings; //Where the team last saw enemy units
+	static Registry registry; //Heartbeats the HQ counts the team from
+	static MapLocation hotspot; // The ore hotspot we are heading for
+	static int hotspotDistance; // The closest we have got to it
+	static int hotspotStalled; // Turns since we last got closer
 	static Team myTeam;
 	static Team enemyTeam;
 	static RobotType myType;
@@ -42,10 +48,10 @@ public class RobotPlayer {
 		if (myType == RobotType.MISSILE)
 			runMissile();
 		
-		if (myType.canMove()) {
-			bfs = new Bfs(rc); // We need to check the breadth first search results to move optimally
-		}
+		bfs = new Bfs(rc); // Units check the breadth first search results to move optimally, the HQ and computers compute them
 		threats = new Threats(rc);
+		sightings = new Sightings(rc);
+		registry = new Registry(rc);
 		
 		if (myType == RobotType.HQ)
 			runHQ();
@@ -73,14 +79,12 @@ public class RobotPlayer {
 	//HQ is responsible for collating unit counts and broadcasting them each turn
 	//It also needs to pass on its supply each turn and fire if there are enemies in range
 	private static void runHQ() {
-		//double lastOre = 500;
-		strategy = new BuildStrategy(rc);
+		strategy = new BuildStrategy(rc, registry);
+		int numTowers = -1;
 		
 		while(true) {
 			threats.update();
 			strategy.broadcast();
-			//double oreIncome = rc.getTeamOre() - lastOre + strategy.oreSpent();
-			//System.out.println("Ore income " + oreIncome + " per miner = " + (oreIncome-5) / (strategy.units(RobotType.MINER) + strategy.units(RobotType.BEAVER)));
 			
 			// See if we need to spawn a beaver
 			if (rc.isCoreReady()) {
@@ -137,8 +141,16 @@ public class RobotPlayer {
 			}
 			
 			doTransfer();
+			//Planning takes most of what the breadth first search needs for a slice so we only plan on even rounds
+			if (Clock.getRoundNum() % 2 == 0)
+				strategy.plan(500);
+			
+			//Start the breadth first search to the enemy HQ before we have any computers
+			//Once that is complete we work out the routes home for supply drones
+			if (bfs.work(threats.enemyHQ, Bfs.GROUND, Bfs.PRIORITY_HIGH, 500, numTowers != threats.enemyTowers.length))
+				bfs.work(myHQ, Bfs.AIR, Bfs.PRIORITY_LOW, 500, false);
+			numTowers = threats.enemyTowers.length;
 			
-			//lastOre = rc.getTeamOre();
 			rc.yield();
 		}
 	}
@@ -146,6 +158,7 @@ public class RobotPlayer {
 	private static void runTower() {
 		while(true) {
 			threats.update();
+			sightings.stamp(threats.enemies());
 			
 			//Attack if there is an enemy in sight
 			if (rc.isWeaponReady())
@@ -158,17 +171,20 @@ public class RobotPlayer {
 	// Factories and supply depots 
 	private static void runBuilding() { //Most builds spawn units
 		if (myType.canSpawn())
-			strategy = new BuildStrategy(rc);
+			strategy = new BuildStrategy(rc, registry);
+		if (myType == RobotType.MINERFACTORY)
+			oreMap = new OreMap(rc, null);
 		
 		while(true) {			
 			if (rc.isCoreReady() && myType.canSpawn()) {
 				threats.update();
 				RobotType build = strategy.getBuildOrder();
 				if (build != null)
-					trySpawn(rc.getLocation().directionTo(threats.enemyHQ), build);							
+					trySpawn(spawnDirection(build), build);
 			}
 			
 			doTransfer();
+			registry.beat(); // After spawning so the idle flag is up to date
 			
 			rc.yield();
 		}
@@ -181,10 +197,14 @@ public class RobotPlayer {
 		droneMoveMax = 2;
 		patrolClockwise = true;
 		droneCentred = false; // We haven't made it to the centre of our spiral yet
+		oreMap = new OreMap(rc, bfs.map());
 		
 		while(true) {
 			threats.update();
+			sightings.stamp(threats.enemies());
+			registry.beat();
 			myLoc = rc.getLocation();
+			oreMap.survey(myLoc);
 			
 			//Attack if there is an enemy in sight
 			if (rc.isWeaponReady())
@@ -195,7 +215,8 @@ public class RobotPlayer {
 				if (shouldRetreat()) {
 					doRetreatMove(); //Pull back if in range of the enemy guns
 				} else if (Clock.getRoundNum() < 600) {
-					doPatrol();
+					if (!doScout())
+						doPatrol();
 				} else {
 					doSupply();
 				}
@@ -210,11 +231,16 @@ public class RobotPlayer {
 	// Miners
 	private static void runMiner() {
 		rand = new Random(rc.getID());
+		oreMap = new OreMap(rc, bfs.map());
 		
 		while(true) {
 			threats.update();
+			sightings.stamp(threats.enemies());
+			registry.beat();
 			myLoc = rc.getLocation();
+			oreMap.survey(myLoc);
 			double ore = rc.senseOre(rc.getLocation());	
+			boolean claimed = ore > 0 && oreMap.claim(myLoc); // Our own patch to work
 			
 			//Attack if there is an enemy in sight
 			if (rc.isWeaponReady())
@@ -228,8 +254,9 @@ public class RobotPlayer {
 					doRetreatMove(); //Pull back if in range of the enemy guns
 				} else {
 					doMinerMove();
-					if (ore == 0 && rc.isCoreReady()) { // We didn't find ore nearby
-						doSearchMove();
+					if (rc.isCoreReady() && (ore == 0 || (ore < 4 && !claimed))) { // We didn't find ore nearby or another miner is working it
+						if (!doHotspotMove(Math.max(1, (int)(ore * 64))) && ore == 0)
+							doSearchMove();
 					}
 				}
 			}
@@ -252,12 +279,16 @@ public class RobotPlayer {
 	
 	// Beavers
 	private static void runBeaver() {
-		strategy = new BuildStrategy(rc);
+		strategy = new BuildStrategy(rc, registry);
 		rand = new Random(rc.getID());
+		oreMap = new OreMap(rc, bfs.map());
 		
 		while(true) {
 			threats.update();
+			sightings.stamp(threats.enemies());
+			registry.beat();
 			myLoc = rc.getLocation();
+			oreMap.survey(myLoc);
 			
 			if (rc.isCoreReady()) {
 				RobotType build = strategy.getBuildOrder();
@@ -281,7 +312,8 @@ public class RobotPlayer {
 				} else {
 					doMinerMove();
 					if (ore == 0 && rc.isCoreReady()) { // We didn't find ore nearby
-						doSearchMove();
+						if (!doHotspotMove(1))
+							doSearchMove();
 					}
 				}
 			}
@@ -304,8 +336,11 @@ public class RobotPlayer {
 	
 	// All combat units (Soldiers, Bashers, Tanks, Drones, Launchers, Commander)
 	private static void runCombat() {
+		threats.useMap(bfs.map());
 		while(true) {
 			threats.update();
+			sightings.stamp(threats.enemies());
+			registry.beat();
 			myLoc = rc.getLocation();
 			
 			//Move if we can and want to
@@ -342,6 +377,7 @@ public class RobotPlayer {
 		int numTowers = -1;
 		while(true) {
 			threats.update();
+			registry.beat();
 			myLoc = rc.getLocation();
 						
 			//Move if we can and want to
@@ -356,7 +392,8 @@ public class RobotPlayer {
 			
 			//Perform a background breadth first search to the enemy HQ
 			if (myType == RobotType.COMPUTER && Clock.getBytecodesLeft() > 1000) {		
-				bfs.work(threats.enemyHQ, Bfs.PRIORITY_HIGH, 1000, numTowers != threats.enemyTowers.length);
+				if (bfs.work(threats.enemyHQ, Bfs.GROUND, Bfs.PRIORITY_HIGH, 1000, numTowers != threats.enemyTowers.length))
+					bfs.work(myHQ, Bfs.AIR, Bfs.PRIORITY_LOW, 1000, false);
 			}
 			numTowers = threats.enemyTowers.length;
 			rc.yield();
@@ -462,6 +499,18 @@ public class RobotPlayer {
 		}
 	}
 	
+	/*
+	 * Early on drones find the edges of the map so every robot's pathfinding knows how big it is
+	 * Returns false once they are all known
+	 */
+	private static boolean doScout() {
+		MapLocation target = bfs.map().scout(myLoc, rc.getID(), (int)Math.sqrt(senseRange));
+		if (target == null || target.equals(myLoc))
+			return false;
+		tryMove(myLoc.directionTo(target), false);
+		return true;
+	}
+	
 	/*
 	 * Head towards the nearest tile that we haven't sensed before
 	 * If there is a tie, pick the one nearest to the hq
@@ -528,7 +577,10 @@ public class RobotPlayer {
 				}
 			}
 		}
-		tryMove(myLoc.directionTo(myHQ), false);
+		Direction d = bfs.readResult(myLoc, myHQ, Bfs.AIR);
+		if (d == null)
+			d = myLoc.directionTo(myHQ);
+		tryMove(d, false);
 	}
 	
 	/*
@@ -543,7 +595,7 @@ public class RobotPlayer {
 	 */
 	
 	private static boolean overwhelms() {
-		return false; //(myType.canAttack() && threats.overwhelms(myLoc));
+		return myType.canAttack() && !myType.canMine() && threats.overwhelms(myLoc);
 	}
 	
 	// If our tile is threatened we should retreat unless the enemy is quicker than us
@@ -552,7 +604,7 @@ public class RobotPlayer {
 		if (myType == RobotType.LAUNCHER && rc.getMissileCount() == 0)
 			return true;
 
-		return threats.isThreatened(myLoc) || threats.inMissileRange();
+		return threats.isThreatened(myLoc);
 	}
 	
 	private static boolean inCombat(int multiplier) {
@@ -630,6 +682,35 @@ public class RobotPlayer {
 		}					
 	}
 	
+	/*
+	 * Beavers and miners without ore head for the richest unclaimed block the team knows about instead of wandering
+	 * Miners on poor ore in a block someone else has claimed move on if a block has at least minOre in it
+	 * Returns false if there isn't one we can get to
+	 */
+	private static boolean doHotspotMove(int minOre) {
+		MapLocation target = oreMap.best(myLoc, threats, minOre);
+		if (target == null)
+			return false;
+		int distance = myLoc.distanceSquaredTo(target);
+		if (distance <= 8 || (minOre > 1 && distance > 64)) // In the block - mine what we find, or too far to leave ore for
+			return false;
+		if (!target.equals(hotspot)) {
+			hotspot = target;
+			hotspotDistance = distance;
+			hotspotStalled = 0;
+		} else if (distance < hotspotDistance) {
+			hotspotDistance = distance;
+			hotspotStalled = 0;
+		} else if (++hotspotStalled > 8) {
+			oreMap.avoid(target);
+			hotspot = null;
+			return false;
+		}
+		rc.setIndicatorString(2, "Mining: No ore - heading to " + target);
+		tryMove(myLoc.directionTo(target), false);
+		return true;
+	}
+	
 	/*
 	 * Beavers and miners without ore do this
 	 */
@@ -732,7 +813,7 @@ public class RobotPlayer {
 			
 			if (myType.canAttack() || (myType == RobotType.LAUNCHER && Clock.getRoundNum() > 550)) {
 				if (myType != RobotType.DRONE)
-					dir = bfs.readResult(myLoc, threats.enemyHQ);
+					dir = bfs.readResult(myLoc, threats.enemyHQ, Bfs.GROUND);
 				if (dir == null)
 					dir = myLoc.directionTo(threats.enemyHQ);
 				rc.setIndicatorString(2, "Advancing " + dir);
@@ -751,9 +832,10 @@ public class RobotPlayer {
 	private static boolean doCloseWithEnemyMove(boolean ignoreThreat) {
 		//Move to within attack range of the nearest enemy - ignore towers and HQ until later in the game
 		//We can move in closer if we are still out of range of the enemy
+		//If there is nothing we want in sensor range head for the closest cell the team has seen enemies in
 		RobotInfo nearest = null;
 		RobotInfo preferred = null;
-		RobotInfo[] enemies = rc.senseNearbyRobots(senseRange*16, enemyTeam);
+		RobotInfo[] enemies = threats.enemies();
 		boolean canFly = (myType == RobotType.DRONE);
 		
 		int now = Clock.getRoundNum();
@@ -789,6 +871,14 @@ public class RobotPlayer {
 			}
 			return true;
 		}
+		
+		MapLocation sighting = sightings.nearest(myLoc, !canFly);
+		if (sighting != null && !sighting.equals(myLoc)) {
+			rc.setIndicatorString(2, "Closing with sighting at " + sighting);
+			if (rc.isCoreReady())
+				tryMove(myLoc.directionTo(sighting), ignoreThreat);
+			return true;
+		}
 		return false;
 	}
 	
@@ -988,6 +1078,16 @@ public class RobotPlayer {
 		return r.canAttack() || r == RobotType.LAUNCHER || r == RobotType.MISSILE;
 	}
 
+	// New miners are put out on the side facing the best ore, everything else faces the enemy
+	private static Direction spawnDirection(RobotType type) {
+		if (type == RobotType.MINER && oreMap != null) {
+			MapLocation target = oreMap.best(rc.getLocation(), threats, 1);
+			if (target != null && !target.equals(rc.getLocation()))
+				return rc.getLocation().directionTo(target);
+		}
+		return rc.getLocation().directionTo(threats.enemyHQ);
+	}
+	
 	// This method will attempt to spawn in the given direction (or as close to it as possible)
 	static boolean trySpawn(Direction d, RobotType type) {
 		if (!rc.hasSpawnRequirements(type))
@@ -1003,7 +1103,7 @@ public class RobotPlayer {
 			if (rc.canSpawn(spawn, type) && rc.hasSpawnRequirements(type)) {
 				try {
 					rc.spawn(spawn, type);
-					strategy.addUnit(type);
+					strategy.addUnit(type, rc.getLocation().add(spawn));
 				} catch (GameActionException e) {
 					System.out.println("Spawn exception");
 					//e.printStackTrace();
@@ -1031,7 +1131,8 @@ public class RobotPlayer {
 					!threats.isThreatened(m)) {
 				try {
 					rc.build(directions[i], type);
-					strategy.addUnit(type);
+					strategy.addUnit(type, m);
+					bfs.reportBlocked(m);
 				} catch (GameActionException e) {
 					System.out.println("Build exception");
 					//e.printStackTrace();
@@ -0,0 +1,150 @@
+package team367;
+
+import battlecode.common.*;
+
+/*
+ * A team-wide grid of where enemy units were last seen, kept in the broadcast space from 49760
+ * The map is split into 8x8 cells. Each cell holds the round it was last stamped (12 bits) << 20 and a 4 bit count of
+ * each kind of enemy unit seen in it (towers and the HQ are known already so aren't counted)
+ * Any robot stamps the cells it can see enemies in once a turn, and units look in the cells around them for something
+ * to close with. Reading costs the same however many enemies there are so it is cheaper than sensing a wide area
+ */
+public class Sightings {
+	private static final int CELL = 8;
+	private static final int CELLS_Y = GameConstants.MAP_MAX_HEIGHT / CELL;
+	private static final int sightingBaseChannel = 49760;
+	private static final int SIGHTING_ROUNDS = 10; // Stamps older than this are ignored
+	private static final int REACH = 2; // Cells either side of ours that we look in
+	// Kinds of unit - the count of each is stored in 4 bits from bit 4*kind
+	private static final int WORKERS = 0; // Beavers and miners
+	private static final int INFANTRY = 1; // Soldiers and bashers
+	private static final int HEAVY = 2; // Tanks and the commander
+	private static final int DRONES = 3;
+	private static final int LAUNCHERS = 4; // Launchers and missiles
+	private static final int KINDS = 5;
+	private static final int COUNT_MASK = (1 << (4 * KINDS)) - 1;
+	private static final int DRONE_MASK = 15 << (4 * DRONES);
+	private static int[] kinds; // Per robot type, -1 if we don't count it
+
+	private RobotController rc;
+	private int stampRound = -1;
+	private int[] touchedCells = new int[4]; // Our sensor range covers at most 2x2 cells
+	private int[] touchedCounts = new int[4];
+
+	public Sightings(RobotController myrc) {
+		rc = myrc;
+		if (kinds == null) {
+			RobotType[] types = RobotType.values();
+			kinds = new int[types.length];
+			for (RobotType t: types)
+				kinds[t.ordinal()] = -1;
+			kinds[RobotType.BEAVER.ordinal()] = WORKERS;
+			kinds[RobotType.MINER.ordinal()] = WORKERS;
+			kinds[RobotType.SOLDIER.ordinal()] = INFANTRY;
+			kinds[RobotType.BASHER.ordinal()] = INFANTRY;
+			kinds[RobotType.TANK.ordinal()] = HEAVY;
+			kinds[RobotType.COMMANDER.ordinal()] = HEAVY;
+			kinds[RobotType.DRONE.ordinal()] = DRONES;
+			kinds[RobotType.LAUNCHER.ordinal()] = LAUNCHERS;
+			kinds[RobotType.MISSILE.ordinal()] = LAUNCHERS;
+		}
+	}
+
+	// Record the enemies we can see - a stamp from earlier this round is merged, an older one is replaced
+	public void stamp(RobotInfo[] enemies) {
+		int now = Clock.getRoundNum();
+		if (enemies.length == 0 || now == stampRound)
+			return;
+		stampRound = now;
+
+		int touched = 0;
+		for (RobotInfo e: enemies) {
+			int kind = kinds[e.type.ordinal()];
+			if (kind < 0)
+				continue;
+			int cell = cell(e.location);
+			int slot = 0;
+			while (slot < touched && touchedCells[slot] != cell)
+				slot++;
+			if (slot == touched) {
+				if (touched == touchedCells.length)
+					continue;
+				touchedCells[slot] = cell;
+				touchedCounts[slot] = 0;
+				touched++;
+			}
+			int shift = 4 * kind;
+			if (((touchedCounts[slot] >>> shift) & 15) < 15)
+				touchedCounts[slot] += 1 << shift;
+		}
+
+		try {
+			for (int i=0; i<touched; i++) {
+				int channel = sightingBaseChannel + touchedCells[i];
+				int counts = touchedCounts[i];
+				int old = rc.readBroadcast(channel);
+				if (old != 0 && (old >>> 20) == (now & 0xfff)) {
+					for (int shift=0; shift<4*KINDS; shift+=4) {
+						if (((old >>> shift) & 15) > ((counts >>> shift) & 15))
+							counts = (counts & ~(15 << shift)) | (old & (15 << shift));
+					}
+				}
+				rc.broadcast(channel, ((now & 0xfff) << 20) | counts);
+			}
+		} catch (GameActionException e) {
+			System.out.println("Sighting stamp exception");
+			//e.printStackTrace();
+		}
+	}
+
+	/*
+	 * The centre of the closest cell around m with a recent sighting, or null if there isn't one
+	 * Ground units can't always reach drones so they can ask to ignore them
+	 */
+	public MapLocation nearest(MapLocation m, boolean ignoreDrones) {
+		int x = crop(m.x, GameConstants.MAP_MAX_WIDTH);
+		int y = crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+		int cx = x / CELL;
+		int cy = y / CELL;
+		int now = Clock.getRoundNum();
+		int mask = ignoreDrones ? COUNT_MASK & ~DRONE_MASK : COUNT_MASK;
+		MapLocation best = null;
+		int bestDistance = Integer.MAX_VALUE;
+		try {
+			for (int i=-REACH; i<=REACH; i++) {
+				int bx = crop(cx + i, GameConstants.MAP_MAX_WIDTH / CELL);
+				for (int j=-REACH; j<=REACH; j++) {
+					int by = crop(cy + j, CELLS_Y);
+					int s = rc.readBroadcast(sightingBaseChannel + bx * CELLS_Y + by);
+					if ((s & mask) == 0 || ((now - (s >>> 20)) & 0xfff) > SIGHTING_ROUNDS)
+						continue;
+					// Work out the offset in cropped space so we don't need to know where the map starts
+					int dx = wrap(bx * CELL + CELL/2 - x, GameConstants.MAP_MAX_WIDTH);
+					int dy = wrap(by * CELL + CELL/2 - y, GameConstants.MAP_MAX_HEIGHT);
+					int distance = dx*dx + dy*dy;
+					if (distance < bestDistance) {
+						best = m.add(dx, dy);
+						bestDistance = distance;
+					}
+				}
+			}
+		} catch (GameActionException e) {
+			System.out.println("Sighting read exception");
+			//e.printStackTrace();
+		}
+		return best;
+	}
+
+	private static int cell(MapLocation m) {
+		return (crop(m.x, GameConstants.MAP_MAX_WIDTH) / CELL) * CELLS_Y + crop(m.y, GameConstants.MAP_MAX_HEIGHT) / CELL;
+	}
+
+	private static int crop(int c, int m) {
+		return ((c % m) + m) % m;
+	}
+
+	// The shortest signed offset for a difference in cropped space
+	private static int wrap(int d, int m) {
+		return crop(d + m/2, m) - m/2;
+	}
+}
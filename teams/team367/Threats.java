@@ -5,28 +5,76 @@ import battlecode.common.*;
 /*
  * Store the tiles threatened by the enemy towers and the HQ in an array for quick access
  * We only need to update this if the number of towers changes.
+ * The HQ rasterises the ranges into a bitmap in the broadcast space from 49300 (a bit per tile in cropped index order,
+ * MAP_MAX_HEIGHT * x + y) so everyone else can check a tile with a single read
  * 
  * Also provides an interface to determine tile safety due to enemy units
  * These are cached so that calling a second time on this turn won't re-calculate.
  */
 public class Threats {
 	private RobotController rc;
+	private Snapshot sensed; // The robots in sensor range this turn
 	public MapLocation enemyHQ;
 	public MapLocation[] enemyTowers;
 	public int enemyHQAttackRange;
 	private boolean [] myTiles; //Adjacent tiles - set to 0 if the tile is safe, 1 if threatened but can retreat, 2 if threatened but retreat is pointless
 	private int[] lastUpdated; //The turn we last updated the stats for myTiles
-	private int[] weighting; // How threatening each robot type is
+	
+	// The header holds the number of enemy towers + 1 the bitmap was built for
+	private static final int threatHeaderChannel = 49300;
+	private static final int threatBaseChannel = threatHeaderChannel + 1;
+	private static final int THREAT_CHANNELS = GameConstants.MAP_MAX_WIDTH * GameConstants.MAP_MAX_HEIGHT / 32;
+	private static final int TOWER_REACH = 4; // Furthest a tower can hit along an axis
+	private static final int HQ_REACH = 7; // The same for the buffed HQ with splash
+	private boolean bitmapReady; // The bitmap matches the towers we can see this round
+	private int[] threatBits; // HQ only - what we last wrote and the channels that are set
+	private int[] threatChannels;
+	private int numThreatChannels;
+	
+	// Fog of war estimate for overwhelms
+	private static final int FOG_HALF_LIFE = 5; // Rounds for an enemy we lost sight of to count half as much
+	private static int[] tilesWithin = new int[128]; // Tiles within each squared radius, worked out when first needed
+	private MapInfo map; // Terrain we already know, can be null
+	private static final int FOG_ROUNDS = 4; // Rounds for an enemy hidden in the fog to reach us
+	private static final int MISSILE_REACH = GameConstants.MISSILE_LIFESPAN * GameConstants.MISSILE_LIFESPAN; // Launchers fire from this far away
+	private double ghostHealth; // The enemy units we have seen recently, decaying as we lose sight of them
+	private double ghostDps;
+	private int ghostRound;
+	
+	// Missiles and loaded launchers that threaten drones and commanders, worked out once a round
+	private static final int MISSILE_SLOTS = 32;
+	private int[] missileIds = new int[MISSILE_SLOTS]; // What we remember of each missile, indexed by id
+	private int[] missileFirstSeen = new int[MISSILE_SLOTS];
+	private int[] missileLastSeen = new int[MISSILE_SLOTS];
+	private MapLocation[] missileLastLoc = new MapLocation[MISSILE_SLOTS];
+	private int missileRound = -1;
+	private int numMissiles;
+	private MapLocation[] missileAt = new MapLocation[MISSILE_SLOTS];
+	private MapLocation[] missileAhead = new MapLocation[MISSILE_SLOTS]; // Where it will be next round if it keeps going, null if we don't know
+	private MapLocation[] missileFrom = new MapLocation[MISSILE_SLOTS];
+	private int[] missileReach = new int[MISSILE_SLOTS];
+	
+	private Battle battle; // Predicts the outcome of fights for overwhelms
+	private MapLocation[] staticLocs = new MapLocation[8]; // The enemy towers and HQ in the fight
+	private int[] staticSlots = new int[8];
 	
 	public Threats(RobotController myrc) {
 		rc = myrc;
+		sensed = new Snapshot(rc);
 		enemyHQ = rc.senseEnemyHQLocation();
 		enemyTowers = null;
 		myTiles = new boolean[Direction.values().length];
 		lastUpdated = new int[Direction.values().length];
-		weighting = new int[RobotType.values().length];
-		for (RobotType t: RobotType.values())
-			weighting[t.ordinal()] = unitWeighting(t);
+		battle = new Battle();
+	}
+	
+	public void useMap(MapInfo m) {
+		map = m;
+	}
+	
+	// Enemy robots within our sensor range this turn
+	public RobotInfo[] enemies() {
+		return sensed.enemies();
 	}
 	
 	public void update() {		
@@ -36,6 +84,113 @@ public class Threats {
 			enemyHQAttackRange = GameConstants.HQ_BUFFED_ATTACK_RADIUS_SQUARED;
 		else
 			enemyHQAttackRange = RobotType.HQ.attackRadiusSquared;
+		
+		try {
+			bitmapReady = rc.readBroadcast(threatHeaderChannel) == enemyTowers.length + 1;
+			if (!bitmapReady && rc.getType() == RobotType.HQ) {
+				rasterise();
+				bitmapReady = true;
+			}
+		} catch (GameActionException e) {
+			System.out.println("Threat bitmap exception");
+			//e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Returns true if the tile is in range of an enemy tower or the HQ
+	 * This is a single bit lookup once the HQ has built the bitmap for the current towers
+	 */
+	public boolean inStaticRange(MapLocation m) {
+		if (bitmapReady) {
+			int index = GameConstants.MAP_MAX_HEIGHT * crop(m.x, GameConstants.MAP_MAX_WIDTH) + crop(m.y, GameConstants.MAP_MAX_HEIGHT);
+			try {
+				return ((rc.readBroadcast(threatBaseChannel + (index >> 5)) >>> (index & 31)) & 1) != 0;
+			} catch (GameActionException e) {
+				System.out.println("Threat bitmap exception");
+				//e.printStackTrace();
+			}
+		}
+		return inHQRange(m) || inTowerRange(m);
+	}
+	
+	/*
+	 * HQ only - rebuild the bitmap for the current towers
+	 * Each column of a range is a single run of tiles so we find its ends and set it a channel at a time
+	 * Only the channels that change are broadcast
+	 */
+	private void rasterise() throws GameActionException {
+		int[] oldBits = threatBits;
+		int[] oldChannels = threatChannels;
+		int oldCount = numThreatChannels;
+		threatBits = new int[THREAT_CHANNELS];
+		threatChannels = new int[256];
+		numThreatChannels = 0;
+		
+		for (MapLocation t: enemyTowers) {
+			for (int dx = -TOWER_REACH; dx <= TOWER_REACH; dx++) {
+				int h = TOWER_REACH;
+				while (h >= 0 && dx*dx + h*h >= RobotType.TOWER.attackRadiusSquared)
+					h--;
+				if (h >= 0)
+					setSpan(t.x + dx, t.y - h, t.y + h);
+			}
+		}
+		
+		// Splash damage makes the HQ shape irregular so we test tiles from each end of the column inwards
+		for (int x = enemyHQ.x - HQ_REACH; x <= enemyHQ.x + HQ_REACH; x++) {
+			int top = enemyHQ.y - HQ_REACH;
+			while (top <= enemyHQ.y + HQ_REACH && !inHQRange(new MapLocation(x, top)))
+				top++;
+			if (top > enemyHQ.y + HQ_REACH)
+				continue;
+			int bottom = enemyHQ.y + HQ_REACH;
+			while (!inHQRange(new MapLocation(x, bottom)))
+				bottom--;
+			setSpan(x, top, bottom);
+		}
+		
+		for (int i=0; i<numThreatChannels; i++) {
+			int c = threatChannels[i];
+			if (oldBits == null || oldBits[c] != threatBits[c])
+				rc.broadcast(threatBaseChannel + c, threatBits[c]);
+		}
+		for (int i=0; i<oldCount; i++) {
+			int c = oldChannels[i];
+			if (threatBits[c] == 0)
+				rc.broadcast(threatBaseChannel + c, 0);
+		}
+		rc.broadcast(threatHeaderChannel, enemyTowers.length + 1);
+	}
+	
+	// Set the bits for tiles y0 to y1 of column x, which can wrap round in cropped space
+	private void setSpan(int x, int y0, int y1) {
+		int base = GameConstants.MAP_MAX_HEIGHT * crop(x, GameConstants.MAP_MAX_WIDTH);
+		int start = crop(y0, GameConstants.MAP_MAX_HEIGHT);
+		int length = y1 - y0 + 1;
+		if (start + length > GameConstants.MAP_MAX_HEIGHT) {
+			setRun(base + start, GameConstants.MAP_MAX_HEIGHT - start);
+			setRun(base, length - (GameConstants.MAP_MAX_HEIGHT - start));
+		} else {
+			setRun(base + start, length);
+		}
+	}
+	
+	private void setRun(int index, int length) {
+		while (length > 0) {
+			int c = index >> 5;
+			int shift = index & 31;
+			int n = Math.min(length, 32 - shift);
+			if (threatBits[c] == 0)
+				threatChannels[numThreatChannels++] = c;
+			threatBits[c] |= (n == 32 ? -1 : (1 << n) - 1) << shift;
+			index += n;
+			length -= n;
+		}
+	}
+	
+	private static int crop(int c, int m) {
+		return ((c % m) + m) % m;
 	}
 	
 	public boolean inHQRange(MapLocation me) {
@@ -57,25 +212,73 @@ public class Threats {
 	}
 	
 	/*
-	 * Returns true if we want to retreat from a missile
-	 * Commanders and anything with a move of 1 (DRONES) should pull back
+	 * Commanders and anything with a move of 1 (DRONES) pull back from missiles, but only from tiles a missile or the
+	 * missile a launcher is holding could actually hit by the end of the next round
+	 * A missile moves a tile a round and splashes the tiles next to it, so it can hit anything 2 tiles away. Once we have
+	 * seen it move we expect it to keep going the same way, so it is only a threat 2 tiles away if it came closer and
+	 * otherwise only next to where it is or where it is heading. A missile we have seen for MISSILE_LIFESPAN rounds has
+	 * burnt out. A launcher can drop a missile next to it which then moves and splashes, so it can hit 3 tiles away
 	 */
-	public boolean inMissileRange() {
+	private void updateMissiles() {
+		missileRound = Clock.getRoundNum();
+		numMissiles = 0;
 		RobotType myType = rc.getType();
-		if (myType == RobotType.COMMANDER || myType == RobotType.DRONE) {		
-			Team enemyTeam = rc.getTeam().opponent();
-			for (RobotInfo u: rc.senseNearbyRobots(myType.sensorRadiusSquared)) {
-				if (u.type == RobotType.MISSILE && (myType == RobotType.COMMANDER || u.team == enemyTeam))
-					return true;
-				if (u.team == enemyTeam && u.type == RobotType.LAUNCHER && u.missileCount > 0)
-					return true;
+		if (myType != RobotType.COMMANDER && myType != RobotType.DRONE)
+			return;
+		Team enemyTeam = rc.getTeam().opponent();
+		for (RobotInfo u: sensed.nearby()) {
+			if (numMissiles == missileAt.length)
+				break;
+			if (u.type == RobotType.MISSILE && (myType == RobotType.COMMANDER || u.team == enemyTeam)) {
+				int slot = u.ID % MISSILE_SLOTS;
+				MapLocation last = null;
+				if (missileIds[slot] != u.ID) {
+					missileIds[slot] = u.ID;
+					missileFirstSeen[slot] = missileRound;
+				} else if (missileLastSeen[slot] == missileRound - 1) {
+					last = missileLastLoc[slot];
+				}
+				missileLastLoc[slot] = u.location;
+				missileLastSeen[slot] = missileRound;
+				if (missileRound - missileFirstSeen[slot] >= GameConstants.MISSILE_LIFESPAN)
+					continue;
+				missileAt[numMissiles] = u.location;
+				if (last == null || last.equals(u.location)) {
+					missileAhead[numMissiles] = null;
+				} else {
+					missileAhead[numMissiles] = u.location.add(last.directionTo(u.location));
+					missileFrom[numMissiles] = last;
+				}
+				missileReach[numMissiles++] = 2;
+			} else if (u.team == enemyTeam && u.type == RobotType.LAUNCHER && u.missileCount > 0) {
+				missileAt[numMissiles] = u.location;
+				missileAhead[numMissiles] = null;
+				missileReach[numMissiles++] = 3;
 			}
 		}
+	}
+	
+	private boolean inMissileRange(MapLocation m) {
+		if (missileRound != Clock.getRoundNum())
+			updateMissiles();
+		for (int i=0; i<numMissiles; i++) {
+			int range = chebyshev(missileAt[i], m);
+			if (range > missileReach[i])
+				continue;
+			MapLocation ahead = missileAhead[i];
+			if (ahead == null || range <= 1 || chebyshev(ahead, m) <= 1 || range < chebyshev(missileFrom[i], m))
+				return true;
+		}
 		return false;
 	}
 	
+	private static int chebyshev(MapLocation a, MapLocation b) {
+		return Math.max(Math.abs(a.x - b.x), Math.abs(a.y - b.y));
+	}
+	
 	/*
 	 * A tile is considered threatened if an enemy can fire on it before we can move out from it
+	 * or a missile we have seen is heading for it
 	 * This routine can be called for our own tile or adjacent tiles.
 	 * When considering adjacent tiles we need to factor in the time it would take to move in and then move out
 	 */
@@ -94,7 +297,7 @@ public class Threats {
 		
 		RobotType myType = rc.getType();
 		Boolean result = false; // Whether this tile is threatened by either a unit or tower or HQ
-		if (inHQRange(m) || inTowerRange(m)) {
+		if (inStaticRange(m) || inMissileRange(m)) {
 			result = true;
 		} else {
 			result = false; //Assume it is safe - the code below will set it to threatened
@@ -123,7 +326,7 @@ public class Threats {
 			if (suppliedTurns < turns) //We run out of supply
 				turns = 2 * turns - suppliedTurns;
 			
-			for (RobotInfo u: rc.senseNearbyRobots(myType.sensorRadiusSquared, rc.getTeam().opponent())) {
+			for (RobotInfo u: sensed.enemies()) {
 				if (u.type.canAttack() && u.location.distanceSquaredTo(m) <= u.type.attackRadiusSquared) {
 					int enemyTurns = Math.max(0, (int)(u.weaponDelay-0.5));
 					suppliedTurns = (int)(u.supplyLevel/u.type.supplyUpkeep);
@@ -145,105 +348,145 @@ public class Threats {
 	
 	/*
 	 * Work out if we overwhelm the enemy in this area
-	 * Each unit type has a weighting based on its damage per round
-	 * We sum up all units in the area and multiply the weighting by its hitpoints, dividing by 2 if it has no supply
-	 * The area we consider is twice our normal sense range (4*the squared area)
-	 * Tiles in that area that we cannot see are considered to have enemy units of average value
+	 * The units in twice our normal sense range (4*the squared area) and any towers or HQ there are handed to a Battle
+	 * which plays out the fight using their damage per round, range, speed and supply
+	 * Tiles in that area that we cannot see may hide enemy units we saw recently, so part of them join the fight late
 	 */
 	public boolean overwhelms(MapLocation myLoc) {
-		double enemyRating = 0.0;
-		double allyRating = 0.0;
-		int senseRange = rc.getType().sensorRadiusSquared * 2;
+		RobotType myType = rc.getType();
+		int senseRange = myType.sensorRadiusSquared * 2;
 		RobotInfo[] units = rc.senseNearbyRobots(senseRange);
+		Team myTeam = rc.getTeam();
+		double unitHealth = 0.0; // The enemy units we can see, not counting towers and the HQ
+		double unitDps = 0.0;
+		int allySensed = 0; // Tiles our allies can see
+		int now = Clock.getRoundNum();
 		
 		double[] multiplier = { 1.0, 1.25, 1.25, 1.25, 2.0, 2.0, 5.0 }; //The effective Health of the HQ is affected by the number of towers
 		
+		battle.reset(myLoc.x * 131 + myLoc.y);
+		//Towers and the HQ are added at full health first and corrected if we can see them
+		int numStatic = 0;
 		for (MapLocation t: enemyTowers) {
 			if (t.distanceSquaredTo(myLoc) <= senseRange) {
-				enemyRating += RobotType.TOWER.maxHealth * weighting[RobotType.TOWER.ordinal()];
+				staticLocs[numStatic] = t;
+				staticSlots[numStatic++] = battle.add(Battle.ENEMY, RobotType.TOWER.maxHealth, battle.dps(RobotType.TOWER), 0, Battle.NEVER);
 			}
 		}
 		
-		if (enemyHQ.distanceSquaredTo(myLoc) <= Math.max(enemyHQAttackRange, senseRange)) {	
-			enemyRating += RobotType.HQ.maxHealth * multiplier[enemyTowers.length] * weighting[RobotType.HQ.ordinal()];
+		if (enemyHQ.distanceSquaredTo(myLoc) <= Math.max(enemyHQAttackRange, senseRange)) {
+			double hqDps = battle.dps(RobotType.HQ);
+			if (enemyTowers.length >= 5)
+				hqDps *= GameConstants.HQ_BUFFED_DAMAGE_MULTIPLIER_LEVEL_2 * (1 + GameConstants.HQ_BUFFED_SPLASH_RATE);
+			else if (enemyTowers.length >= 3)
+				hqDps *= GameConstants.HQ_BUFFED_DAMAGE_MULTIPLIER_LEVEL_1;
+			staticLocs[numStatic] = enemyHQ;
+			staticSlots[numStatic++] = battle.add(Battle.ENEMY, RobotType.HQ.maxHealth * multiplier[enemyTowers.length], hqDps, 0, Battle.NEVER);
 		}
 		
-		//Add in myself - it is not returned in the sense data
-		if (rc.getType().canAttack() && rc.getType().canMove())
-			allyRating += rc.getHealth() * weighting[rc.getType().ordinal()];
-		
-		//Add rating from nearby units
+		//Enemy units close in on us, so they join the fight once they have covered the gap to their attack range
+		MapLocation nearest = null;
+		int nearestDistance = Integer.MAX_VALUE;
 		for (RobotInfo u: units) {
-			double health = u.health;
-			if (u.type.needsSupply() && u.supplyLevel < u.type.supplyUpkeep)
-				health /= 2.0;
-			if (u.team != rc.getTeam()) {	//enemies				
-				if (u.type.canAttack()) {
-					enemyRating += health * weighting[u.type.ordinal()];
-					if (u.type == RobotType.HQ) // We already added the max HP so take it off now we know the real value 
-						enemyRating -= RobotType.HQ.maxHealth * multiplier[enemyTowers.length] * weighting[u.type.ordinal()];
-					if (u.type == RobotType.TOWER)
-						enemyRating -= RobotType.TOWER.maxHealth * weighting[u.type.ordinal()];
+			if (u.team == myTeam || !(u.type.canAttack() || u.type == RobotType.LAUNCHER))
+				continue;
+			int distance = u.location.distanceSquaredTo(myLoc);
+			if (u.type == RobotType.TOWER || u.type == RobotType.HQ) {
+				for (int i=0; i<numStatic; i++) {
+					if (staticLocs[i].equals(u.location) && staticSlots[i] >= 0)
+						battle.setHealth(Battle.ENEMY, staticSlots[i], u.type == RobotType.HQ ? u.health * multiplier[enemyTowers.length] : u.health);
 				}
-			} else { // allies
-				if (u.type.canAttack() && u.type.canMove() && !u.type.canMine())
-					allyRating += health * weighting[u.type.ordinal()];
+				continue;
+			}
+			if (distance < nearestDistance) {
+				nearest = u.location;
+				nearestDistance = distance;
 			}
+			double dps = battle.dps(u.type);
+			battle.add(Battle.ENEMY, u.health, dps, closingRounds(u.type, distance), outOfSupply(u));
+			unitHealth += u.health;
+			unitDps += dps;
+		}
+		
+		//We and our allies close in on the nearest enemy (or the towers if we can't see any units)
+		if (myType.canMove())
+			battle.add(Battle.ALLY, rc.getHealth(), battle.dps(myType), nearest == null ? 0 : closingRounds(myType, nearestDistance),
+					myType.needsSupply() ? (int)(rc.getSupplyLevel() / myType.supplyUpkeep) : Battle.NEVER);
+		for (RobotInfo u: units) {
+			if (u.team != myTeam)
+				continue;
+			allySensed += tilesWithin(u.type.sensorRadiusSquared);
+			if (!(u.type.canAttack() || u.type == RobotType.LAUNCHER) || !u.type.canMove() || u.type.canMine())
+				continue;
+			battle.add(Battle.ALLY, u.health, battle.dps(u.type), nearest == null ? 0 : closingRounds(u.type, u.location.distanceSquaredTo(nearest)), outOfSupply(u));
 		}
 		
 		//We need to take into account tiles we cannot sense at the moment
-		//We assume they are occupied by enemy units
-		/* Too Slow
-		for (MapLocation tile: MapLocation.getAllMapLocationsWithinRadiusSq(myLoc, senseRange)) {
-			TerrainTile t = map.tile(tile);
-			switch(t) {
-			case VOID:
-				if (!rc.canSenseLocation(tile)) // Assume a drone
-					enemyRating += RobotType.DRONE.maxHealth * weighting[(RobotType.DRONE.ordinal()];
-				break;
-			case UNKNOWN:
-			case NORMAL:
-				if (!rc.canSenseLocation(tile)) // Assume a tank
-					enemyRating += RobotType.TANK.maxHealth * weighting[(RobotType.TANK.ordinal()];
-				break;
-			case OFF_MAP: //There can be nothing here
-				break;
+		//Enemies we saw recently but can't see now may be hiding in them, so we keep the health and damage of what we
+		//have seen, halving every FOG_HALF_LIFE rounds, and the part we can't see now spread over the hidden tiles joins
+		//the fight after a step
+		int halvings = (now - ghostRound) / FOG_HALF_LIFE;
+		if (halvings > 0) {
+			ghostHealth /= 1 << Math.min(30, halvings);
+			ghostDps /= 1 << Math.min(30, halvings);
+			ghostRound += halvings * FOG_HALF_LIFE;
+		}
+		if (unitHealth >= ghostHealth) {
+			ghostHealth = unitHealth;
+			ghostDps = unitDps;
+			ghostRound = now;
+		}
+		if (ghostHealth > unitHealth) {
+			//The area outside our own sensor range less what nearby allies can see (assume half of it overlaps ours)
+			int area = tilesWithin(senseRange);
+			int hidden = area - tilesWithin(myType.sensorRadiusSquared) - allySensed / 2;
+			if (hidden > 0) {
+				//Sample the edge of the area in the terrain cache - tiles off the map can't hide anything
+				if (map != null) {
+					int reach = (int)Math.sqrt(senseRange);
+					int onMap = 0;
+					for (Direction d: Direction.values()) {
+						if (d != Direction.NONE && d != Direction.OMNI && map.known(myLoc.add(d, d.isDiagonal() ? reach*5/7 : reach)) != TerrainTile.OFF_MAP)
+							onMap++;
+					}
+					hidden = hidden * onMap / 8;
+				}
+				double share = (double)hidden / area;
+				if (share > 0)
+					battle.add(Battle.ENEMY, (ghostHealth - unitHealth) * share, Math.max(0, ghostDps - unitDps) * share, FOG_ROUNDS, Battle.NEVER);
 			}
 		}
-		*/
-		rc.setIndicatorString(1, "Turn " + Clock.getRoundNum() + " allies = "+allyRating+" enemy = "+enemyRating);
-		
-		if (isThreatened(myLoc))
-			return (allyRating >= enemyRating && allyRating > 100); //If we are threatened we stand and fight is we could win
 		
-		//If we are not threatened we only move in with 2:1 ratio in our favour.
-		return (allyRating >= enemyRating * 2 && allyRating > 100);
+		boolean result = battle.weWin(isThreatened(myLoc));
+		rc.setIndicatorString(1, "Turn " + now + " allies = " + battle.fighters(Battle.ALLY) + " enemy = " + battle.fighters(Battle.ENEMY) + " win = " + result);
+		return result;
 	}
 	
-	/*
-	 * Attack values based on damage per round if we constantly fire
-	 */
-	private int unitWeighting(RobotType u) {
-		switch (u) {
-		case BEAVER:
-		case MINER:
-			return 2;
-		case SOLDIER:
-		case BASHER:
-			return 4;
-		case COMMANDER:
-			return 10;
-		case TANK:
-			return 7;
-		case DRONE:
-			return 3;
-		case LAUNCHER:
-			return 10;
-		case HQ:
-			return 12;
-		case TOWER:
-			return 8;
-		}
-		return 0;
+	// Rounds for a unit to get from this far away into attack range of its target
+	private static int closingRounds(RobotType t, int distanceSquared) {
+		int range = t == RobotType.LAUNCHER ? MISSILE_REACH : t.attackRadiusSquared;
+		if (distanceSquared <= range)
+			return 0;
+		return (int)((Math.sqrt(distanceSquared) - Math.sqrt(range)) * t.movementDelay);
+	}
+	
+	// The round a unit runs out of supply and starts to fire at half rate
+	private static int outOfSupply(RobotInfo u) {
+		if (!u.type.needsSupply())
+			return Battle.NEVER;
+		return (int)(u.supplyLevel / u.type.supplyUpkeep);
+	}
+	
+	// The number of tiles within a squared radius - each column is a run so this only loops over the columns
+	private static int tilesWithin(int radiusSquared) {
+		if (radiusSquared < tilesWithin.length && tilesWithin[radiusSquared] != 0)
+			return tilesWithin[radiusSquared];
+		int reach = (int)Math.sqrt(radiusSquared);
+		int count = 0;
+		for (int dx = -reach; dx <= reach; dx++)
+			count += 2 * (int)Math.sqrt(radiusSquared - dx*dx) + 1;
+		if (radiusSquared < tilesWithin.length)
+			tilesWithin[radiusSquared] = count;
+		return count;
 	}
 }